@@ -0,0 +1,399 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.commands.Command;
+import org.ftp4che.reply.Reply;
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * Asynchronous facade for a FTPConnection. Every method returns at once with a
+ * CompletableFuture, the operations are queued and executed one after another
+ * by a single thread per connection (a FTP control connection can only run
+ * one command at a time). The future is completed with the result of the
+ * operation or exceptionally with the IOException, FtpIOException or
+ * FtpWorkflowException thrown by the FTPConnection.
+ * 
+ * Cancelling a future that is still queued removes the operation from the
+ * queue. Cancelling a running transfer (download, upload, listing or
+ * directory transfer) aborts it with ABOR, the connection can be used for the
+ * queued operations afterwards. All other operations (including fxpFile) are
+ * not interrupted, the result is just dropped.
+ */
+public class AsyncFTPConnection {
+
+    private static final Logger log = Logger
+            .getLogger(AsyncFTPConnection.class.getName());
+
+    private FTPConnection connection;
+
+    private ExecutorService executor;
+
+    private final Object lock = new Object();
+
+    private OperationFuture<?> running = null;
+
+    /**
+     * @param connection
+     *            The connection the operations are executed on. It must not
+     *            be used directly while operations are queued.
+     */
+    public AsyncFTPConnection(final FTPConnection connection) {
+        this.connection = connection;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AsyncFTPConnection-"
+                        + connection.getAddress());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return Returns the connection.
+     */
+    public FTPConnection getConnection() {
+        return connection;
+    }
+
+    public CompletableFuture<Void> connect() {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.connect();
+                return null;
+            }
+        }, false);
+    }
+
+    /**
+     * Queues the disconnect. No operations can be queued after this method
+     * was called.
+     */
+    public CompletableFuture<Void> disconnect() {
+        CompletableFuture<Void> future = submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.disconnect();
+                return null;
+            }
+        }, false);
+        executor.shutdown();
+        return future;
+    }
+
+    /**
+     * Stops the worker thread without disconnecting. Queued operations are
+     * cancelled, a running transfer is aborted.
+     */
+    public void close() {
+        executor.shutdownNow();
+        synchronized (lock) {
+            if (running != null)
+                running.cancel(false);
+        }
+    }
+
+    public CompletableFuture<Reply> sendCommand(final Command command) {
+        return submit(new Callable<Reply>() {
+            public Reply call() throws Exception {
+                return connection.sendCommand(command);
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> noOperation() {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.noOperation();
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> changeDirectory(final String directory) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.changeDirectory(directory);
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> changeToParentDirectory() {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.changeToParentDirectory();
+                return null;
+            }
+        }, false);
+    }
+
+    /**
+     * @return a future for the working directory
+     */
+    public CompletableFuture<String> getWorkDirectory() {
+        return submit(new Callable<String>() {
+            public String call() throws Exception {
+                return connection.getWorkDirectory();
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> makeDirectory(final String pathname) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.makeDirectory(pathname);
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> removeDirectory(final String pathname) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.removeDirectory(pathname);
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> deleteFile(final FTPFile file) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.deleteFile(file);
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> deleteDirectory(final FTPFile directory) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.deleteDirectory(directory);
+                return null;
+            }
+        }, false);
+    }
+
+    public CompletableFuture<Void> renameFile(final FTPFile fromName,
+            final FTPFile toName) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.renameFile(fromName, toName);
+                return null;
+            }
+        }, false);
+    }
+
+    /**
+     * @return a future for the size of the file
+     */
+    public CompletableFuture<Long> getFileSize(final FTPFile file) {
+        return submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                return Long.valueOf(connection.getFileSize(file));
+            }
+        }, false);
+    }
+
+    /**
+     * @return a future for the FTPFile with the facts of the file (MLST)
+     */
+    public CompletableFuture<FTPFile> getFileInfo(final FTPFile file) {
+        return submit(new Callable<FTPFile>() {
+            public FTPFile call() throws Exception {
+                return connection.getFileInfo(file);
+            }
+        }, false);
+    }
+
+    /**
+     * @return a future for the FTPFiles in the directory
+     */
+    public CompletableFuture<List<FTPFile>> getDirectoryListing(
+            final String directory) {
+        return submit(new Callable<List<FTPFile>>() {
+            public List<FTPFile> call() throws Exception {
+                return connection.getDirectoryListing(directory);
+            }
+        }, true);
+    }
+
+    public CompletableFuture<Void> downloadFile(FTPFile fromFile,
+            FTPFile toFile) {
+        return downloadFile(fromFile, toFile, false);
+    }
+
+    public CompletableFuture<Void> downloadFile(final FTPFile fromFile,
+            final FTPFile toFile, final boolean resume) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.downloadFile(fromFile, toFile, resume);
+                return null;
+            }
+        }, true);
+    }
+
+    /**
+     * @return a future for the ByteBuffer with the content of the file, see
+     *         FTPConnection.downloadToBuffer(FTPFile)
+     */
+    public CompletableFuture<ByteBuffer> downloadToBuffer(
+            final FTPFile fromFile) {
+        return submit(new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws Exception {
+                return connection.downloadToBuffer(fromFile);
+            }
+        }, true);
+    }
+
+    public CompletableFuture<Void> downloadDirectory(final FTPFile srcDir,
+            final FTPFile dstDir) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.downloadDirectory(srcDir, dstDir);
+                return null;
+            }
+        }, true);
+    }
+
+    public CompletableFuture<Void> uploadFile(FTPFile fromFile,
+            FTPFile toFile) {
+        return uploadFile(fromFile, toFile, false);
+    }
+
+    public CompletableFuture<Void> uploadFile(final FTPFile fromFile,
+            final FTPFile toFile, final boolean resume) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.uploadFile(fromFile, toFile, resume);
+                return null;
+            }
+        }, true);
+    }
+
+    public CompletableFuture<Void> uploadStream(final InputStream upStream,
+            final FTPFile toFile) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.uploadStream(upStream, toFile);
+                return null;
+            }
+        }, true);
+    }
+
+    public CompletableFuture<Void> uploadDirectory(final FTPFile srcDir,
+            final FTPFile dstDir) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.uploadDirectory(srcDir, dstDir);
+                return null;
+            }
+        }, true);
+    }
+
+    /**
+     * Queues a server to server transfer. The operation runs in the queue of
+     * this (the source) connection, the destination connection is used from
+     * this thread too, so it must not be busy with other operations.
+     */
+    public CompletableFuture<Void> fxpFile(final FTPConnection destination,
+            final FTPFile fromFile, final FTPFile toFile) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                connection.fxpFile(destination, fromFile, toFile);
+                return null;
+            }
+        }, false);
+    }
+
+    private <T> CompletableFuture<T> submit(final Callable<T> operation,
+            final boolean transfer) {
+        final OperationFuture<T> future = new OperationFuture<T>(transfer);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    execute(future, operation);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            future.completeExceptionally(ree);
+        }
+        return future;
+    }
+
+    private <T> void execute(OperationFuture<T> future, Callable<T> operation) {
+        synchronized (lock) {
+            // cancelled while it was queued
+            if (future.isDone())
+                return;
+            // the transfer is begun before the future can be seen by
+            // cancel(), so abort() always finds it
+            if (future.transfer)
+                connection.beginTransfer();
+            running = future;
+        }
+        T result = null;
+        Throwable failure = null;
+        try {
+            result = operation.call();
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            synchronized (lock) {
+                running = null;
+                if (future.transfer)
+                    connection.endTransfer();
+            }
+        }
+        if (failure == null)
+            future.complete(result);
+        else if (!future.completeExceptionally(failure)
+                && log.isDebugEnabled())
+            log.debug("Cancelled operation failed", failure);
+    }
+
+    private class OperationFuture<T> extends CompletableFuture<T> {
+
+        private boolean transfer;
+
+        OperationFuture(boolean transfer) {
+            this.transfer = transfer;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(mayInterruptIfRunning))
+                return false;
+            synchronized (lock) {
+                if (transfer && running == this)
+                    connection.abort();
+            }
+            return true;
+        }
+    }
+}
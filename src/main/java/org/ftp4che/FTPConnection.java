@@ -19,13 +19,16 @@ package org.ftp4che;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.security.GeneralSecurityException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -34,8 +37,8 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 
-import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.swing.event.EventListenerList;
 
@@ -53,7 +56,11 @@ import org.ftp4che.exception.FtpIOException;
 import org.ftp4che.exception.FtpWorkflowException;
 import org.ftp4che.exception.NotConnectedException;
 import org.ftp4che.exception.UnkownReplyStateException;
+import org.ftp4che.io.BufferPool;
+import org.ftp4che.io.RateLimiter;
 import org.ftp4che.io.ReplyWorker;
+import org.ftp4che.io.RingBufferInputStream;
+import org.ftp4che.io.SSLSupport;
 import org.ftp4che.io.SocketProvider;
 import org.ftp4che.proxy.Proxy;
 import org.ftp4che.reply.Reply;
@@ -61,6 +68,7 @@ import org.ftp4che.reply.ReplyCode;
 import org.ftp4che.util.ReplyFormatter;
 import org.ftp4che.util.ftpfile.FTPFile;
 import org.ftp4che.util.ftpfile.FTPFileFactory;
+import org.ftp4che.util.ftpfile.FTPFileHandler;
 
 /**
  * @author arnold,kurt
@@ -102,6 +110,18 @@ public abstract class FTPConnection {
 
     public static final int MAX_UPLOAD_BANDWIDTH = Integer.MAX_VALUE;
 
+    /**
+     * Initial size of the buffer of downloadToBuffer() if the size of the file
+     * is unknown
+     */
+    public static final int DEFAULT_DOWNLOAD_BUFFER_SIZE = 16384;
+
+    /**
+     * Downloads of at least this size are written to a preallocated file (see
+     * setPreallocationThreshold())
+     */
+    public static final long DEFAULT_PREALLOCATION_THRESHOLD = 1024 * 1024;
+
     /**
      * Connection status that are possbile public static final int CONNECTED =
      * 1001; public static final int DISCONNECTED = 1002; public static final
@@ -175,6 +195,15 @@ public abstract class FTPConnection {
 
     private int uploadBandwidth = MAX_UPLOAD_BANDWIDTH;
 
+    // the limiters of this connection, their parents are the limiters shared
+    // with other connections. They are given to every data connection, so
+    // changes apply to running transfers.
+    private final RateLimiter downloadLimiter = new RateLimiter(
+            RateLimiter.UNLIMITED);
+
+    private final RateLimiter uploadLimiter = new RateLimiter(
+            RateLimiter.UNLIMITED);
+
     private Charset charset = Charset.forName("ISO-8859-1");
 
     private CharsetEncoder encoder = charset.newEncoder();
@@ -196,6 +225,10 @@ public abstract class FTPConnection {
     private TrustManager[] trustManagers = {};
     
     private KeyManager[] keyManagers = {};
+
+    private SSLContext sslContext = null;
+
+    private boolean sslEngineTransport = true;
     
     private boolean tryResume = false;
     
@@ -205,7 +238,43 @@ public abstract class FTPConnection {
     
     private boolean sscnSupport = false;
 
+    private boolean mlstSupport = false;
+
+    private FTPFileFactory mlsxFactory = new FTPFileFactory(
+            FTPFileFactory.MLSX_IDENTIFICATION);
+
     private String connectionTransferType = Command.TYPE_I;
+
+    private int pipelineWindow = 256;
+
+    private String dataChannelProtection = null;
+
+    private int streamBufferSize = RingBufferInputStream.DEFAULT_BUFFER_SIZE;
+
+    private long preallocationThreshold = DEFAULT_PREALLOCATION_THRESHOLD;
+
+    private boolean mappedDownloads = false;
+
+    private int transferBufferSize = SocketProvider.DEFAULT_BUFFER_SIZE;
+
+    private int receiveBufferSize = 0;
+
+    private int sendBufferSize = 0;
+
+    private boolean controlTcpNoDelay = true;
+
+    private int trafficClass = -1;
+
+    private int dataConnectTimeout = 30000;
+
+    // state of the running transfer, see abort()
+    private final Object abortLock = new Object();
+
+    private int transferDepth = 0;
+
+    private boolean abortRequested = false;
+
+    private SocketProvider activeDataProvider = null;
     
     /**
      * @param address
@@ -320,11 +389,24 @@ public abstract class FTPConnection {
             log.warn("Error closing connection: " + getAddress().getHostName()
                     + ":" + getAddress().getPort(), ioe);
         }
+        if (socketProvider != null)
+            socketProvider.release();
         socketProvider = null;
         setConnectionStatusLock(FTPConnection.CSL_DIRECT_CALL);
         this.setConnectionStatus(FTPConnection.DISCONNECTED);
     }
 
+    /**
+     * This method is used to check if the control connection is open. It does
+     * not send anything to the server, use noOperation() to test if the server
+     * still answers.
+     * 
+     * @return true if connect() was called and the connection was not closed
+     */
+    public boolean isConnected() {
+        return socketProvider != null && !socketProvider.socket().isClosed();
+    }
+
     /**
      * This method is used to send commands (there is an implementation for each
      * possible command). You should call this method if you want to send a raw
@@ -363,11 +445,122 @@ public abstract class FTPConnection {
         if (getConnectionStatusLock() == CSL_DIRECT_CALL)
             setConnectionStatus(IDLE);
         
-        if (reply != null)
+        if (reply != null) {
+            if (Command.PROT.equals(cmd.getCommand())
+                    && cmd.getParameter().length > 0
+                    && ReplyCode.isPositiveCompletionReply(reply))
+                dataChannelProtection = cmd.getParameter()[0];
             fireReplyMessageArrived(new FTPEvent(this, getConnectionStatus(), reply));
+        }
         return reply;
     }
 
+    /**
+     * This method is used to send a batch of commands without waiting for the
+     * reply of each command (pipelining). The commands are written in blocks
+     * and the replies are matched to the commands in order, so a batch of n
+     * commands costs about n / pipeline window round trips instead of n. The
+     * replies are not validated, check them one by one to get the result of a
+     * single command.
+     * 
+     * @param commands
+     *            List of Command objects
+     * @return List of Reply objects, one for each command in the same order
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     */
+    public List<Reply> sendCommands(List<Command> commands) throws IOException {
+
+        if (getConnectionStatusLock() == CSL_DIRECT_CALL)
+            setConnectionStatus(BUSY);
+
+        List<Reply> replies = new ArrayList<Reply>(commands.size());
+        int sent = 0;
+        try {
+            while (replies.size() < commands.size()) {
+                int outstanding = sent - replies.size();
+                // refill the window when half of it was answered, so the
+                // server never runs out of commands
+                if (sent < commands.size() && outstanding <= pipelineWindow / 2) {
+                    int count = Math.min(pipelineWindow - outstanding,
+                            commands.size() - sent);
+                    writeCommands(commands.subList(sent, sent + count));
+                    sent += count;
+                }
+                Reply reply = ReplyWorker.readReply(socketProvider);
+                replies.add(reply);
+                fireReplyMessageArrived(new FTPEvent(this,
+                        getConnectionStatus(), reply));
+            }
+        } catch (IOException ioe) {
+            setConnectionStatus(ERROR);
+            disconnect();
+            throw ioe;
+        }
+
+        if (getConnectionStatusLock() == CSL_DIRECT_CALL)
+            setConnectionStatus(IDLE);
+
+        return replies;
+    }
+
+    private void writeCommands(List<Command> commands) throws IOException {
+        StringBuffer batch = new StringBuffer(commands.size() * 32);
+        for (Iterator<Command> it = commands.iterator(); it.hasNext();) {
+            String command = it.next().toString();
+            log.debug("Sending command: "
+                    + command.substring(0, command.length() - 2));
+            batch.append(command);
+        }
+        socketProvider.write(encoder.encode(CharBuffer.wrap(batch)));
+    }
+
+    /**
+     * Validates each of the given replies.
+     * 
+     * @return List with one entry for each reply: null if the reply was
+     *         positive, otherwise the exception Reply.validate() threw
+     */
+    private List<Exception> validateReplies(List<Reply> replies) {
+        List<Exception> results = new ArrayList<Exception>(replies.size());
+        for (Iterator<Reply> it = replies.iterator(); it.hasNext();) {
+            Reply reply = it.next();
+            reply.dumpReply();
+            try {
+                reply.validate();
+                results.add(null);
+            } catch (FtpWorkflowException fwe) {
+                results.add(fwe);
+            } catch (FtpIOException fioe) {
+                results.add(fioe);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * This method is used to set the maximum number of commands that are sent
+     * in a batch without waiting for their replies (see sendCommands). The
+     * commands and replies of one window have to fit into the socket buffers.
+     * 
+     * @param pipelineWindow
+     *            the number of commands, default is 256
+     */
+    public void setPipelineWindow(int pipelineWindow) {
+        if (pipelineWindow < 1)
+            throw new IllegalArgumentException(
+                    "pipelineWindow must be at least 1");
+        this.pipelineWindow = pipelineWindow;
+    }
+
+    /**
+     * @return Returns the pipelineWindow.
+     */
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
     /**
      * 
      * This method is used to get the status of your connection
@@ -567,6 +760,29 @@ public abstract class FTPConnection {
         reply.validate();
     }
 
+    /**
+     * This method is used to create several directories with pipelined MKD
+     * commands (see sendCommands). Parent directories have to be in the list
+     * before their subdirectories. An error of one directory (f.e. because it
+     * already exists) does not stop the others.
+     *
+     * @param pathnames
+     *            List of Strings represanting the directories to create
+     * @return List with one entry for each directory: null if the directory
+     *         was created, otherwise the FtpWorkflowException or
+     *         FtpIOException the reply caused
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     */
+    public List<Exception> makeDirectories(List<String> pathnames)
+            throws IOException {
+        List<Command> commands = new ArrayList<Command>(pathnames.size());
+        for (Iterator<String> it = pathnames.iterator(); it.hasNext();)
+            commands.add(new Command(Command.MKD, it.next()));
+        return validateReplies(sendCommands(commands));
+    }
+
     /**
      * This method is used to remove a specific directory. it implements the RMD
      * ftp command
@@ -685,7 +901,7 @@ public abstract class FTPConnection {
      *             should indicate some secific problems on the server
      */
 
-    public List getDirectoryListing() throws IOException,
+    public List<FTPFile> getDirectoryListing() throws IOException,
             FtpWorkflowException, FtpIOException {
         return getDirectoryListing(getWorkDirectory());
     }
@@ -756,13 +972,65 @@ public abstract class FTPConnection {
      *             should indicate some secific problems on the server
      */
 
-    public List getDirectoryListing(String directory)
+    public List<FTPFile> getDirectoryListing(String directory)
+            throws IOException, FtpWorkflowException, FtpIOException {
+        final List<FTPFile> parsedList = new ArrayList<FTPFile>();
+        getDirectoryListing(directory, new FTPFileHandler() {
+            public void handleFile(FTPFile file) {
+                parsedList.add(file);
+            }
+        });
+        return parsedList;
+    }
+
+    /**
+     * This method is used to get a directory listing from the specified
+     * directory. The listing is parsed while it is read from the data
+     * connection and every entry is passed to the given handler, so the memory
+     * used does not depend on the size of the directory. If the server
+     * supports MLST (see checkFeatures()) the listing is fetched with MLSD,
+     * otherwise with LIST.
+     * 
+     * @param directory
+     * 			   The directory where a LIST should be done
+     * @param handler
+     *             The handler receiving the FTPFiles of the listing
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     * @throws FtpWorkflowException
+     *             will be thrown if there was a ftp reply class 5xx. in most
+     *             cases wrong commands where send
+     * @throws FtpIOException
+     *             will be thrown if there was a ftp reply class 4xx. this
+     *             should indicate some secific problems on the server
+     */
+    public void getDirectoryListing(String directory, FTPFileHandler handler)
+            throws IOException, FtpWorkflowException, FtpIOException {
+        beginTransfer();
+        try {
+            list(directory, handler);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    private void list(String directory, FTPFileHandler handler)
             throws IOException, FtpWorkflowException, FtpIOException {
         
         setConnectionStatusLock(CSL_INDIRECT_CALL);
         setConnectionStatus(FTPConnection.BUSY);
         
-        ListCommand command = new ListCommand(directory);
+        // machine readable listings have exact sizes and UTC times
+        ListCommand command;
+        FTPFileFactory listFactory;
+        if (isMlstSupport()) {
+            command = new ListCommand(Command.MLSD, directory);
+            listFactory = mlsxFactory;
+        } else {
+            command = new ListCommand(directory);
+            listFactory = factory;
+        }
         SocketProvider provider = null;
         String workDirectory = getWorkDirectory();
         if (getConnectionType() == FTPConnection.AUTH_SSL_FTP_CONNECTION
@@ -780,15 +1048,18 @@ public abstract class FTPConnection {
         }
 
         command.setDataSocket(provider);
+        setActiveDataProvider(provider);
         // INFO response from ControllConnection is ignored
-        List parsedList = null;
         try {
-        	parsedList = factory.parse(command
-                .fetchDataConnectionReply().getLines(), workDirectory);
+        	command.fetchDataConnectionReply(listFactory, workDirectory, handler);
         }catch(IOException ioe) {
-            setConnectionStatus(ERROR);
-            disconnect();
+            dataTransferFailed(commandReply);
         	throw ioe;
+        }catch(RuntimeException re) {
+            // thrown by the handler or the parser, the data connection is
+            // closed but the server still sends the reply of the listing
+            abortTransfer(commandReply);
+            throw re;
         }
         if (commandReply.getLines().size() == 1) {
         	try {
@@ -802,8 +1073,6 @@ public abstract class FTPConnection {
         
         setConnectionStatus(FTPConnection.IDLE);
         setConnectionStatusLock(CSL_DIRECT_CALL);
-        
-        return parsedList;
     }
 
     /**
@@ -832,64 +1101,80 @@ public abstract class FTPConnection {
         SocketProvider provider = null;
         
         if (getProxy() == null) {
-            ServerSocket server = ServerSocketFactory.getDefault()
-                .createServerSocket();
-            InetSocketAddress isa = new InetSocketAddress(socketProvider.socket()
-                .getLocalAddress(), 0);
+            // a channel based socket allows zero copy transfers on the data
+            // connection (see SocketProvider.transferFrom)
+            ServerSocket server = ServerSocketChannel.open().socket();
+            try {
+                InetSocketAddress isa = new InetSocketAddress(socketProvider.socket()
+                    .getLocalAddress(), 0);
+                // the accepted socket inherits the receive buffer, it has to be
+                // set before the connection is established to get a large TCP
+                // window
+                if (receiveBufferSize > 0)
+                    server.setReceiveBufferSize(receiveBufferSize);
+                server.setSoTimeout(dataConnectTimeout);
         
-            server.bind(isa);
-            int port = server.getLocalPort();
-
-            StringBuffer modifiedHost = new StringBuffer();
-            modifiedHost.append(server.getInetAddress().getHostAddress().replace(
-                '.', ','));
-            modifiedHost.append(",");
-            modifiedHost.append(port >> 8);
-            modifiedHost.append(",");
-            modifiedHost.append(port & 0x00ff);
-
-            Command portCommand = new Command(Command.PORT, modifiedHost.toString());
-            Reply portReply = sendCommand(portCommand);
-            portReply.dumpReply();
-            portReply.validate();
-            commandReply.setLines(sendCommand(command).getLines());
-            commandReply.dumpReply();
-            commandReply.validate();
-            provider = new SocketProvider(server.accept(), false,
-                getDownloadBandwidth(), getUploadBandwidth());
+                server.bind(isa);
+                int port = server.getLocalPort();
+
+                StringBuffer modifiedHost = new StringBuffer();
+                modifiedHost.append(server.getInetAddress().getHostAddress().replace(
+                    '.', ','));
+                modifiedHost.append(",");
+                modifiedHost.append(port >> 8);
+                modifiedHost.append(",");
+                modifiedHost.append(port & 0x00ff);
+
+                Command portCommand = new Command(Command.PORT, modifiedHost.toString());
+                Reply portReply = sendCommand(portCommand);
+                portReply.dumpReply();
+                portReply.validate();
+                commandReply.setLines(sendCommand(command).getLines());
+                commandReply.dumpReply();
+                commandReply.validate();
+                provider = new SocketProvider(server.accept(), false,
+                    getDownloadLimiter(), getUploadLimiter());
+            } finally {
+                server.close();
+            }
         } else {
             InetSocketAddress portSocketAddress = new InetSocketAddress(getAddress().getAddress(), 0);
             Socket proxySocket = getProxy().bind(portSocketAddress);
-            
-            int port = getProxy().getBindAddress().getPort();
-
-            StringBuffer modifiedHost = new StringBuffer();
-            modifiedHost.append(getProxy().getProxyAddress().getAddress().getHostAddress().replace(
-                '.', ','));
-            modifiedHost.append(",");
-            modifiedHost.append(port >> 8);
-            modifiedHost.append(",");
-            modifiedHost.append(port & 0x00ff);
-
-            Command portCommand = new Command(Command.PORT, modifiedHost.toString());
-            Reply portReply = sendCommand(portCommand);
-            portReply.dumpReply();
-            portReply.validate();
-            commandReply.setLines(sendCommand(command).getLines());
-            commandReply.dumpReply();
-            commandReply.validate();
-            
-            provider = new SocketProvider(proxySocket, false, getDownloadBandwidth(), getUploadBandwidth());            
+            boolean accepted = false;
+            try {
+                int port = getProxy().getBindAddress().getPort();
+
+                StringBuffer modifiedHost = new StringBuffer();
+                modifiedHost.append(getProxy().getProxyAddress().getAddress().getHostAddress().replace(
+                    '.', ','));
+                modifiedHost.append(",");
+                modifiedHost.append(port >> 8);
+                modifiedHost.append(",");
+                modifiedHost.append(port & 0x00ff);
+
+                Command portCommand = new Command(Command.PORT, modifiedHost.toString());
+                Reply portReply = sendCommand(portCommand);
+                portReply.dumpReply();
+                portReply.validate();
+                commandReply.setLines(sendCommand(command).getLines());
+                commandReply.dumpReply();
+                commandReply.validate();
+
+                provider = new SocketProvider(proxySocket, false, getDownloadLimiter(), getUploadLimiter());
+                accepted = true;
+            } finally {
+                if (!accepted)
+                    proxySocket.close();
+            }
         }
             
-        provider.socket().setReceiveBufferSize(65536);
-        provider.socket().setSendBufferSize(65536);
+        configureDataSocket(provider);
         provider.setSSLMode(getConnectionType());
         if (connectionType == FTPConnection.AUTH_TLS_FTP_CONNECTION
                 || connectionType == FTPConnection.AUTH_SSL_FTP_CONNECTION
                 || connectionType == FTPConnection.IMPLICIT_SSL_WITH_CRYPTED_DATA_FTP_CONNECTION
                 || connectionType == FTPConnection.IMPLICIT_TLS_WITH_CRYPTED_DATA_FTP_CONNECTION)
-            provider.negotiate(this.getTrustManagers(),this.getKeyManagers());
+            negotiate(provider);
         
         setConnectionStatus(FTPConnection.IDLE);
         setConnectionStatusLock(CSL_DIRECT_CALL);
@@ -931,6 +1216,16 @@ public abstract class FTPConnection {
     
     public void downloadFile(FTPFile fromFile, FTPFile toFile,boolean resume)
             throws IOException, FtpWorkflowException, FtpIOException {
+        beginTransfer();
+        try {
+            retrieveFile(fromFile, toFile, resume);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    private void retrieveFile(FTPFile fromFile, FTPFile toFile, boolean resume)
+            throws IOException, FtpWorkflowException, FtpIOException {
         
         setConnectionStatusLock(CSL_INDIRECT_CALL);
         setConnectionStatus(RECEIVING_FILE_STARTED, fromFile, toFile);
@@ -938,6 +1233,8 @@ public abstract class FTPConnection {
 
         RetrieveCommand command = new RetrieveCommand(Command.RETR, fromFile,
                 toFile);
+        command.setPreallocationThreshold(preallocationThreshold);
+        command.setMappedWrites(mappedDownloads);
         SocketProvider provider = null;
 
         if (getConnectionType() == FTPConnection.AUTH_SSL_FTP_CONNECTION
@@ -990,12 +1287,12 @@ public abstract class FTPConnection {
         }
 
         command.setDataSocket(provider);
+        setActiveDataProvider(provider);
         // INFO response from ControllConnection is ignored
         try {
         	command.fetchDataConnectionReply();
         }catch(IOException ioe) {
-            setConnectionStatus(ERROR);
-            disconnect();
+            dataTransferFailed(commandReply);
         	throw ioe;
         }
         if (commandReply.getLines().size() == 1) {
@@ -1013,50 +1310,366 @@ public abstract class FTPConnection {
         setConnectionStatusLock(CSL_DIRECT_CALL);        
     }
 
+    /**
+     * This method is used to download a part of a file from the server. The
+     * transfer is started at offset with REST and RETR, the received bytes are
+     * written with positional writes to the channel at the same offset. When
+     * length bytes were received the data connection is closed and the rest
+     * of the transfer is aborted with ABOR (unless the part ends at the end of
+     * the file). The data is always transfered in binary mode.
+     * 
+     * @param fromFile
+     *            the file on the server
+     * @param channel
+     *            the local file, it is not closed by this method
+     * @param offset
+     *            the position of the first byte
+     * @param length
+     *            the number of bytes to download
+     * @return the number of bytes written, it is less than length if the file
+     *         is shorter
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server or the local file could not be written
+     * @throws FtpWorkflowException
+     *             will be thrown if there was a ftp reply class 5xx. in most
+     *             cases wrong commands where send
+     * @throws FtpIOException
+     *             will be thrown if there was a ftp reply class 4xx. this
+     *             should indicate some secific problems on the server
+     */
+    public long downloadRange(FTPFile fromFile, FileChannel channel,
+            long offset, long length) throws IOException,
+            FtpWorkflowException, FtpIOException {
+        beginTransfer();
+        try {
+            return retrieveRange(fromFile, channel, offset, length);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    private long retrieveRange(FTPFile fromFile, FileChannel channel,
+            long offset, long length) throws IOException,
+            FtpWorkflowException, FtpIOException {
+        setConnectionStatusLock(CSL_INDIRECT_CALL);
+        setConnectionStatus(RECEIVING_FILE_STARTED, fromFile, null);
+        setConnectionStatus(RECEIVING_FILE);
+
+        if (getConnectionType() == FTPConnection.AUTH_SSL_FTP_CONNECTION
+                || getConnectionType() == FTPConnection.AUTH_TLS_FTP_CONNECTION) {
+            Command pbsz = new Command(Command.PBSZ, "0");
+            (sendCommand(pbsz)).dumpReply();
+            Command prot = new Command(Command.PROT, "P");
+            (sendCommand(prot)).dumpReply();
+        }
+        (sendCommand(new Command(Command.TYPE_I))).dumpReply();
+        connectionTransferType = Command.TYPE_I;
+
+        Reply restReply = sendCommand(new Command(Command.REST, "" + offset));
+        restReply.dumpReply();
+        restReply.validate();
+
+        Command command = new Command(Command.RETR, fromFile.toString());
+        Reply commandReply = new Reply();
+        SocketProvider provider;
+        if (isPassiveMode()) {
+            provider = initDataSocket(command, commandReply);
+        } else {
+            provider = sendPortCommand(command, commandReply);
+        }
+        setActiveDataProvider(provider);
+
+        // if the range ends at the end of the file the server closes the
+        // data connection by itself
+        boolean toEnd = fromFile.getSize() > 0
+                && offset + length >= fromFile.getSize();
+        boolean endOfFile = false;
+        long received = 0;
+        byte[] data = BufferPool.getDefault().acquireArray(transferBufferSize);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (received < length) {
+                int amount = provider.read(data, 0, (int) Math.min(
+                        data.length, length - received));
+                if (amount < 0) {
+                    endOfFile = true;
+                    break;
+                }
+                buffer.clear();
+                buffer.limit(amount);
+                while (buffer.hasRemaining())
+                    channel.write(buffer, offset + received
+                            + buffer.position());
+                received += amount;
+            }
+            if (!endOfFile && toEnd)
+                endOfFile = provider.read(data, 0, data.length) < 0;
+        } catch (IOException ioe) {
+            dataTransferFailed(commandReply);
+            throw ioe;
+        } finally {
+            try {
+                provider.close();
+            } catch (IOException ioe) {
+            }
+            provider.release();
+            BufferPool.getDefault().release(data);
+        }
+
+        try {
+            if (!endOfFile) {
+                // the first reply ends the RETR (mostly 426), the second one
+                // belongs to the ABOR
+                (sendCommand(new Command(Command.ABOR))).dumpReply();
+            }
+            if (commandReply.getLines().size() == 1)
+                (ReplyWorker.readReply(socketProvider)).dumpReply();
+        } catch (IOException ioe) {
+            setConnectionStatus(ERROR);
+            disconnect();
+            throw ioe;
+        }
+
+        setConnectionStatus(RECEIVING_FILE_ENDED, fromFile, null);
+        setConnectionStatus(IDLE);
+        setConnectionStatusLock(CSL_DIRECT_CALL);
+        return received;
+    }
+
+    /**
+     * This method is used to abort the running transfer (downloadFile,
+     * downloadRange, uploadFile, uploadStream, getDirectoryListing or one of
+     * the directory transfers) from another thread. The data connection is
+     * closed, the thread running the transfer sends ABOR, reads the remaining
+     * replies and throws a FtpIOException with the reply code 426. The control
+     * connection stays open and can be used for the next command. If the data connection
+     * is not open yet it will be closed as soon as it was established.
+     * 
+     * @return true if a transfer was running, false if there was nothing to
+     *         abort
+     */
+    public boolean abort() {
+        SocketProvider provider;
+        synchronized (abortLock) {
+            if (transferDepth == 0)
+                return false;
+            abortRequested = true;
+            provider = activeDataProvider;
+        }
+        if (provider != null)
+            closeDataProvider(provider);
+        return true;
+    }
+
+    /**
+     * Marks the start of a transfer that can be aborted with abort(). Calls
+     * can be nested, the transfer ends with the last call of endTransfer().
+     */
+    void beginTransfer() {
+        synchronized (abortLock) {
+            transferDepth++;
+        }
+    }
+
+    void endTransfer() {
+        synchronized (abortLock) {
+            if (--transferDepth == 0) {
+                abortRequested = false;
+                activeDataProvider = null;
+            }
+        }
+    }
+
+    private void setActiveDataProvider(SocketProvider provider) {
+        boolean aborted;
+        synchronized (abortLock) {
+            activeDataProvider = provider;
+            aborted = abortRequested;
+        }
+        if (aborted)
+            closeDataProvider(provider);
+    }
+
+    private void closeDataProvider(SocketProvider provider) {
+        try {
+            provider.abort();
+        } catch (IOException ioe) {
+            log.debug("Error closing data connection", ioe);
+        }
+    }
+
+    /**
+     * Called if reading or writing the data connection failed. If the
+     * transfer was aborted the ABOR command is send and a FtpIOException is
+     * thrown, otherwise the connection is closed and the caller has to throw
+     * the original exception.
+     */
+    private void dataTransferFailed(Reply commandReply) throws IOException,
+            FtpIOException {
+        boolean aborted;
+        synchronized (abortLock) {
+            aborted = abortRequested;
+            abortRequested = false;
+        }
+        if (!aborted) {
+            setConnectionStatus(ERROR);
+            disconnect();
+            return;
+        }
+        abortTransfer(commandReply);
+        throw new FtpIOException(ReplyCode.REPLY_426, "Transfer aborted");
+    }
+
+    /**
+     * Sends ABOR for a transfer whose data connection was closed and reads
+     * the outstanding replies, so the control connection can be used again.
+     */
+    private void abortTransfer(Reply commandReply) throws IOException {
+        try {
+            // the first reply ends the transfer command (mostly 426), the
+            // second one belongs to the ABOR
+            (sendCommand(new Command(Command.ABOR))).dumpReply();
+            if (commandReply.getLines().size() == 1)
+                (ReplyWorker.readReply(socketProvider)).dumpReply();
+        } catch (IOException ioe) {
+            setConnectionStatus(ERROR);
+            disconnect();
+            throw ioe;
+        }
+        setConnectionStatus(IDLE);
+        setConnectionStatusLock(CSL_DIRECT_CALL);
+    }
+
+    /**
+     * This method is used to download a file from the server as a stream. The
+     * transfer runs in the background (with the executor of the data
+     * connection workers) and the received data is handed over to the
+     * returned stream by a buffer of getStreamBufferSize() bytes. The method
+     * returns at once, reading from the stream blocks until data arrived. If
+     * the transfer fails the stream throws an IOException after the data
+     * received so far was read.
+     * 
+     * @param fromFile
+     *            the file on the server
+     * @return the stream with the content of the file
+     */
     public InputStream downloadStream(FTPFile fromFile) throws IOException, FtpWorkflowException, FtpIOException {
         
-        PipedInputStream pis = new PipedInputStream();
+        final RingBufferInputStream stream = new RingBufferInputStream(streamBufferSize);
         
-        class DownStreamingThread extends Thread {
+        class DownStreamingTask implements Runnable {
             FTPConnection connection;
             FTPFile fromFile;
-            PipedInputStream pis;
             
-            public DownStreamingThread(FTPConnection connection, FTPFile fromFile, PipedInputStream pis) {
-                super();
+            public DownStreamingTask(FTPConnection connection, FTPFile fromFile) {
                 this.connection = connection;
                 this.fromFile = fromFile;
-                this.pis = pis;
             }
 
             public void run() {
                 try {
-                    connection.streamFile(fromFile, pis);
+                    connection.streamFile(fromFile, stream);
+                    // the end of the stream is signaled after the final
+                    // reply was read, so the connection can be used at once
+                    stream.finish();
                 }catch(Exception e) {
-                    e.printStackTrace();
+                    log.error("Error downloading " + fromFile + " as stream", e);
+                    stream.fail(e);
                 }
             }
         }
         
-        (new DownStreamingThread(this, fromFile, pis)).start();
+        // runs with the executor of the data connection workers
+        ReplyWorker.submitTask(new DownStreamingTask(this, fromFile));
         
-        // ensure that in/out pipes are connected already
-        try {
-        	for(int i=0; i<60 && pis.available() <= 0; i++)
-        		Thread.sleep(1000);
-        }catch(Exception e) {}
-        
-        return pis;
+        return stream;
     }
     
     
-    private void streamFile(FTPFile fromFile, PipedInputStream pis) throws IOException, FtpWorkflowException, FtpIOException {
+    private void streamFile(FTPFile fromFile, RingBufferInputStream stream) throws IOException, FtpWorkflowException, FtpIOException {
+        RetrieveCommand command = new RetrieveCommand(Command.RETR, fromFile, stream);
+        beginTransfer();
+        try {
+            retrieve(command, RetrieveCommand.STREAM_BASED);
+        } finally {
+            endTransfer();
+        }
+    }
+
+    /**
+     * This method is used to download a file from the server into memory. The
+     * buffer is allocated with the size of fromFile (if it is known, see
+     * getFileSize()) and grows if the file is larger.
+     * 
+     * @param fromFile
+     *            the file on the server
+     * @return a heap buffer with the content of the file between position 0
+     *         and the limit
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     * @throws FtpWorkflowException
+     *             will be thrown if there was a ftp reply class 5xx. in most
+     *             cases wrong commands where send
+     * @throws FtpIOException
+     *             will be thrown if there was a ftp reply class 4xx. this
+     *             should indicate some secific problems on the server
+     */
+    public ByteBuffer downloadToBuffer(FTPFile fromFile) throws IOException,
+            FtpWorkflowException, FtpIOException {
+        long size = fromFile.getSize();
+        int capacity = (size > 0 && size < Integer.MAX_VALUE ? (int) size
+                : DEFAULT_DOWNLOAD_BUFFER_SIZE);
+        return downloadToBuffer(fromFile, ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * This method is used to download a file from the server into the given
+     * heap or direct buffer, starting at its position. If the file does not
+     * fit between the position and the limit, the data is continued in a
+     * larger buffer of the same kind that gets a copy of the given buffer,
+     * so the result has to be taken from the returned buffer.
+     * 
+     * @param fromFile
+     *            the file on the server
+     * @param dst
+     *            the buffer the file should be stored in
+     * @return dst or the larger buffer, the content of the file is between
+     *         the position of dst at the time of the call and the limit
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     * @throws FtpWorkflowException
+     *             will be thrown if there was a ftp reply class 5xx. in most
+     *             cases wrong commands where send
+     * @throws FtpIOException
+     *             will be thrown if there was a ftp reply class 4xx. this
+     *             should indicate some secific problems on the server
+     */
+    public ByteBuffer downloadToBuffer(FTPFile fromFile, ByteBuffer dst)
+            throws IOException, FtpWorkflowException, FtpIOException {
+        int start = dst.position();
+        RetrieveCommand command = new RetrieveCommand(Command.RETR, fromFile, dst);
+        beginTransfer();
+        try {
+            retrieve(command, RetrieveCommand.BYTEBUFFER_BASED);
+        } finally {
+            endTransfer();
+        }
+        ByteBuffer data = command.getByteBuffer();
+        data.limit(data.position());
+        data.position(start);
+        return data;
+    }
+
+    private void retrieve(RetrieveCommand command, int method) throws IOException, FtpWorkflowException, FtpIOException {
         
+        FTPFile fromFile = command.getFromFile();
         setConnectionStatusLock(CSL_INDIRECT_CALL);
         setConnectionStatus(RECEIVING_FILE_STARTED, fromFile, null);
         setConnectionStatus(RECEIVING_FILE);
 
-        RetrieveCommand command = new RetrieveCommand(Command.RETR, fromFile, pis);
         SocketProvider provider = null;
 
         if (getConnectionType() == FTPConnection.AUTH_SSL_FTP_CONNECTION
@@ -1078,12 +1691,12 @@ public abstract class FTPConnection {
         }
 
         command.setDataSocket(provider);
+        setActiveDataProvider(provider);
         // INFO response from ControllConnection is ignored
         try {
-        	command.fetchDataConnectionReply(RetrieveCommand.STREAM_BASED);
+        	command.fetchDataConnectionReply(method);
         }catch(IOException ioe) {
-            setConnectionStatus(ERROR);
-            disconnect();
+            dataTransferFailed(commandReply);
         	throw ioe;
         }
         if (commandReply.getLines().size() == 1) {
@@ -1191,6 +1804,16 @@ public abstract class FTPConnection {
     }
     private void upload(Object upSrc, FTPFile toFile, boolean resume)
 			throws IOException, FtpWorkflowException, FtpIOException {
+		beginTransfer();
+		try {
+			store(upSrc, toFile, resume);
+		} finally {
+			endTransfer();
+		}
+	}
+
+	private void store(Object upSrc, FTPFile toFile, boolean resume)
+			throws IOException, FtpWorkflowException, FtpIOException {
 
 		FTPFile srcInfo = null;
 		if (upSrc instanceof FTPFile)
@@ -1254,12 +1877,12 @@ public abstract class FTPConnection {
 		}
 
 		command.setDataSocket(provider);
+		setActiveDataProvider(provider);
 		// INFO response from ControllConnection is ignored
 		try {
 			command.fetchDataConnectionReply();
 		} catch (IOException ioe) {
-			setConnectionStatus(ERROR);
-			disconnect();
+			dataTransferFailed(commandReply);
 			throw ioe;
 		}
 		if (commandReply.getLines().size() == 1) {
@@ -1574,8 +2197,13 @@ public abstract class FTPConnection {
     	}
         InetSocketAddress dataSocket = sendPassiveMode();
         SocketProvider provider = new SocketProvider(false);
-        provider.connect(dataSocket, getProxy(), getDownloadBandwidth(),
-                getUploadBandwidth());
+        // the buffer sizes have to be set before the connection is
+        // established to get a large TCP window
+        configureDataSocket(provider);
+        provider.connect(dataSocket, getProxy(), getDownloadLimiter(),
+                getUploadLimiter(), dataConnectTimeout);
+        if (getProxy() != null)
+            configureDataSocket(provider);
         provider.setSSLMode(getConnectionType());
 
         commandReply.setLines(sendCommand(command).getLines());
@@ -1586,7 +2214,7 @@ public abstract class FTPConnection {
                 || connectionType == FTPConnection.AUTH_SSL_FTP_CONNECTION
                 || connectionType == FTPConnection.IMPLICIT_SSL_WITH_CRYPTED_DATA_FTP_CONNECTION
                 || connectionType == FTPConnection.IMPLICIT_TLS_WITH_CRYPTED_DATA_FTP_CONNECTION)
-            provider.negotiate(this.getTrustManagers(),this.getKeyManagers());
+            negotiate(provider);
         
         setConnectionStatus(FTPConnection.IDLE);
         setConnectionStatusLock(CSL_DIRECT_CALL);
@@ -1594,6 +2222,48 @@ public abstract class FTPConnection {
         return provider;
     }
 
+    /**
+     * Applies the socket options of this connection to a data connection.
+     * Passive connections are configured before they are established (the
+     * receive buffer decides about the TCP window scaling), connections over
+     * a proxy and accepted connections of the active mode afterwards.
+     */
+    private void configureDataSocket(SocketProvider provider)
+            throws IOException {
+        Socket socket = provider.socket();
+        if (receiveBufferSize > 0)
+            socket.setReceiveBufferSize(receiveBufferSize);
+        if (sendBufferSize > 0)
+            socket.setSendBufferSize(sendBufferSize);
+        if (trafficClass >= 0)
+            socket.setTrafficClass(trafficClass);
+        provider.setBufferSize(transferBufferSize);
+    }
+
+    /**
+     * Starts TLS on the given connection with the SSLContext of this
+     * connection. The session is cached for the host and port of the control
+     * connection, so data connections using the SSLEngine transport resume
+     * the session of the control connection instead of doing a full
+     * handshake (some servers require this).
+     */
+    protected void negotiate(SocketProvider provider) throws IOException {
+        Socket control = socketProvider.socket();
+        provider.setSSLEngineEnabled(sslEngineTransport);
+        provider.negotiate(getSSLContext(), control.getInetAddress()
+                .getHostAddress(), control.getPort());
+    }
+
+    /**
+     * Applies the socket options of this connection to the control
+     * connection. It has to be called by connect() of the implementations.
+     */
+    protected void configureControlSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(controlTcpNoDelay);
+        if (trafficClass >= 0)
+            socket.setTrafficClass(trafficClass);
+    }
+
     /**
      * @return Returns the connectionType.
      */
@@ -1607,6 +2277,7 @@ public abstract class FTPConnection {
      */
     protected void setConnectionType(int connectionType) {
         this.connectionType = connectionType;
+        setSSLContext(null);
     }
 
  /**
@@ -1635,31 +2306,110 @@ public abstract class FTPConnection {
     /**
      * @return Returns the downloadBandwidth.
      */
-    protected int getDownloadBandwidth() {
+    public int getDownloadBandwidth() {
         return downloadBandwidth;
     }
 
     /**
+     * Sets the bytes per second downloads of this connection may use. It can
+     * be changed at any time, a running download uses the new bandwidth for
+     * the next chunk it receives.
+     * 
      * @param downloadBandwidth
-     *            The downloadBandwidth to set.
+     *            The downloadBandwidth to set, MAX_DOWNLOAD_BANDWIDTH turns the
+     *            limit off.
      */
-    protected void setDownloadBandwidth(int maxDownloadBandwidth) {
+    public void setDownloadBandwidth(int maxDownloadBandwidth) {
         this.downloadBandwidth = maxDownloadBandwidth;
+        downloadLimiter.setRate(toRate(maxDownloadBandwidth));
     }
 
     /**
      * @return Returns the uploadBandwidth.
      */
-    protected int getUploadBandwidth() {
+    public int getUploadBandwidth() {
         return uploadBandwidth;
     }
 
     /**
+     * Sets the bytes per second uploads of this connection may use. It can be
+     * changed at any time, a running upload uses the new bandwidth for the
+     * next chunk it sends.
+     * 
      * @param uploadBandwidth
-     *            The uploadBandwidth to set.
+     *            The uploadBandwidth to set, MAX_UPLOAD_BANDWIDTH turns the
+     *            limit off.
      */
-    protected void setUploadBandwidth(int maxUploadBandwidth) {
+    public void setUploadBandwidth(int maxUploadBandwidth) {
         this.uploadBandwidth = maxUploadBandwidth;
+        uploadLimiter.setRate(toRate(maxUploadBandwidth));
+    }
+
+    /**
+     * @return Returns the shared limiter of the downloads.
+     */
+    public RateLimiter getDownloadRateLimiter() {
+        return downloadLimiter.getParent();
+    }
+
+    /**
+     * Sets a limiter the downloads of this connection share with other
+     * connections. The download bandwidth of this connection is limited by it
+     * and by its parents in addition to the downloadBandwidth, so one limiter
+     * per host with a global parent limits the sum of all transfers to the
+     * host and of all transfers at all. Like the bandwidth it can be changed
+     * during a transfer.
+     * 
+     * @param downloadRateLimiter
+     *            The downloadRateLimiter to set, null if only the
+     *            downloadBandwidth of this connection is used.
+     */
+    public void setDownloadRateLimiter(RateLimiter downloadRateLimiter) {
+        downloadLimiter.setParent(downloadRateLimiter);
+    }
+
+    /**
+     * @return Returns the shared limiter of the uploads.
+     */
+    public RateLimiter getUploadRateLimiter() {
+        return uploadLimiter.getParent();
+    }
+
+    /**
+     * Sets a limiter the uploads of this connection share with other
+     * connections, see setDownloadRateLimiter(RateLimiter).
+     * 
+     * @param uploadRateLimiter
+     *            The uploadRateLimiter to set, null if only the
+     *            uploadBandwidth of this connection is used.
+     */
+    public void setUploadRateLimiter(RateLimiter uploadRateLimiter) {
+        uploadLimiter.setParent(uploadRateLimiter);
+    }
+
+    /**
+     * @return the limiter of the downloads of this connection
+     */
+    protected RateLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+
+    /**
+     * @return the limiter of the uploads of this connection
+     */
+    protected RateLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+
+    /**
+     * @return the rate of a RateLimiter for the bandwidth,
+     *         MAX_DOWNLOAD_BANDWIDTH / MAX_UPLOAD_BANDWIDTH is unlimited
+     */
+    static long toRate(int bandwidth) {
+        if (bandwidth <= 0 || bandwidth == MAX_DOWNLOAD_BANDWIDTH
+                || bandwidth == MAX_UPLOAD_BANDWIDTH)
+            return RateLimiter.UNLIMITED;
+        return bandwidth;
     }
 
     // listenerList methods
@@ -1861,11 +2611,34 @@ public abstract class FTPConnection {
         reply.validate();
     }
 
+    /**
+     * public List deleteFiles(List files)
+     * 
+     * deletes the given files on the server. The DELE commands are pipelined
+     * (see sendCommands), an error of one file does not stop the others.
+     * 
+     * @param files
+     *            List of FTPFile objects to delete
+     * @return List with one entry for each file: null if the file was deleted,
+     *         otherwise the FtpWorkflowException or FtpIOException the reply
+     *         caused
+     * @throws IOException
+     */
+    public List<Exception> deleteFiles(List<FTPFile> files) throws IOException {
+        List<Command> commands = new ArrayList<Command>(files.size());
+        for (Iterator<FTPFile> it = files.iterator(); it.hasNext();) {
+            FTPFile file = it.next();
+            commands.add(new Command(Command.DELE, file.toString()));
+        }
+        return validateReplies(sendCommands(commands));
+    }
+
     /**
      * public void deleteDirectory(FTPFile directory)
      * 
      * deletes the given directory recursivly, means the directory and all
-     * subdirectories will be removed and all files deleted
+     * subdirectories will be removed and all files deleted. The files of a
+     * directory are deleted with pipelined DELE commands.
      * 
      * @param directory
      * @throws IOException
@@ -1883,20 +2656,37 @@ public abstract class FTPConnection {
 
         Collections.sort(files);
 
+        List<FTPFile> plainFiles = new ArrayList<FTPFile>();
+        List<FTPFile> directories = new ArrayList<FTPFile>();
         for (Iterator it = files.iterator(); it.hasNext();) {
             FTPFile file = (FTPFile)it.next();
             file.setPath(directory.toString());
-            if (!file.isDirectory()) {
-                deleteFile(file);
-            } else {
-                deleteDirectory(file);
-                // removeDirectory( file );
-            }
+            if (!file.isDirectory())
+                plainFiles.add(file);
+            else
+                directories.add(file);
+        }
+
+        throwFirstError(deleteFiles(plainFiles));
+
+        for (Iterator<FTPFile> it = directories.iterator(); it.hasNext();) {
+            deleteDirectory(it.next());
         }
 
         removeDirectory(directory);
     }
 
+    private void throwFirstError(List<Exception> results)
+            throws FtpIOException, FtpWorkflowException {
+        for (Iterator<Exception> it = results.iterator(); it.hasNext();) {
+            Exception result = it.next();
+            if (result instanceof FtpWorkflowException)
+                throw (FtpWorkflowException) result;
+            if (result instanceof FtpIOException)
+                throw (FtpIOException) result;
+        }
+    }
+
     /**
      * public void removeDirectory(FTPFile directory)
      * 
@@ -1937,6 +2727,23 @@ public abstract class FTPConnection {
         reply.validate();
     }
 
+    /**
+     * @return Returns the transfer type used for up- and downloads
+     *         (Command.TYPE_I or Command.TYPE_A)
+     */
+    public String getTransferType() {
+        return connectionTransferType;
+    }
+
+    /**
+     * @return Returns the protection level of the data channel of the last
+     *         successful PROT command (f.e. "P" or "C") or null if no PROT
+     *         command was sent.
+     */
+    public String getDataChannelProtection() {
+        return dataChannelProtection;
+    }
+
     /**
      * @return Returns the proxy.
      */
@@ -1984,6 +2791,7 @@ public abstract class FTPConnection {
      */
     public void setTrustManagers(TrustManager[] trustManagers) {
         this.trustManagers = trustManagers;
+        setSSLContext(null);
     }
 
     /**
@@ -1998,8 +2806,209 @@ public abstract class FTPConnection {
      */
     public void setKeyManagers(KeyManager[] keyManagers) {
         this.keyManagers = keyManagers;
+        setSSLContext(null);
+    }
+
+    /**
+     * Returns the SSLContext used for the control and all data connections.
+     * It is created with the trust and key managers on the first call.
+     * 
+     * @return Returns the sslContext.
+     * @throws IOException
+     *             will be thrown if the context could not be created
+     */
+    public synchronized SSLContext getSSLContext() throws IOException {
+        if (sslContext == null) {
+            try {
+                sslContext = SSLSupport.createContext(getConnectionType(),
+                        getTrustManagers(), getKeyManagers());
+            } catch (GeneralSecurityException gse) {
+                IOException ioe = new IOException(
+                        "Could not create SSLContext: " + gse.getMessage());
+                ioe.initCause(gse);
+                throw ioe;
+            }
+        }
+        return sslContext;
     }
 
+    /**
+     * @param sslContext The sslContext to set, null creates a new one with
+     *            the trust and key managers.
+     */
+    public synchronized void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * @return Returns true if encrypted data connections use a SSLEngine.
+     */
+    public boolean isSSLEngineTransport() {
+        return sslEngineTransport;
+    }
+
+    /**
+     * @param sslEngineTransport Set to false to use a SSLSocket with streams
+     *            for encrypted data connections instead of a SSLEngine on the
+     *            channel (see SSLEngineTransport). The SSLSocket can't resume
+     *            the session of the control connection (JSSE looks up the
+     *            session with the port of the data connection) and copies all
+     *            data through the java heap.
+     */
+    public void setSSLEngineTransport(boolean sslEngineTransport) {
+        this.sslEngineTransport = sslEngineTransport;
+    }
+
+	/**
+	 * @return Returns the size of the buffer used by downloadStream().
+	 */
+	public int getStreamBufferSize() {
+		return streamBufferSize;
+	}
+
+	/**
+	 * @param streamBufferSize The size of the buffer used by downloadStream()
+	 *            to set. A larger buffer allows the transfer to continue while
+	 *            the reader is busy.
+	 */
+	public void setStreamBufferSize(int streamBufferSize) {
+		this.streamBufferSize = streamBufferSize;
+	}
+
+	/**
+	 * @return Returns the preallocationThreshold.
+	 */
+	public long getPreallocationThreshold() {
+		return preallocationThreshold;
+	}
+
+	/**
+	 * @param preallocationThreshold The minimum number of bytes that have to
+	 *            be downloaded with downloadFile() to allocate the local file
+	 *            with its final size before the transfer. The size of the
+	 *            FTPFile on the server has to be known (from a listing or
+	 *            getFileSize()). -1 disables the preallocation.
+	 */
+	public void setPreallocationThreshold(long preallocationThreshold) {
+		this.preallocationThreshold = preallocationThreshold;
+	}
+
+	/**
+	 * @return Returns true if preallocated downloads are written through a
+	 *         memory mapping.
+	 */
+	public boolean isMappedDownloads() {
+		return mappedDownloads;
+	}
+
+	/**
+	 * @param mappedDownloads Set to true to receive preallocated downloads
+	 *            directly into a memory mapping of the local file instead of
+	 *            writing them. This saves the write calls of large
+	 *            downloads, but a full disk is only noticed as an error of
+	 *            the JVM (the file is allocated sparse on most systems).
+	 */
+	public void setMappedDownloads(boolean mappedDownloads) {
+		this.mappedDownloads = mappedDownloads;
+	}
+
+	/**
+	 * @return Returns the size of the buffers used on data connections.
+	 */
+	public int getTransferBufferSize() {
+		return transferBufferSize;
+	}
+
+	/**
+	 * @param transferBufferSize The size of the buffers used to read from and
+	 *            write to data connections to set, at least 1. It is used for
+	 *            plain and encrypted data connections.
+	 */
+	public void setTransferBufferSize(int transferBufferSize) {
+		if (transferBufferSize < 1)
+			throw new IllegalArgumentException(
+					"transferBufferSize must be at least 1");
+		this.transferBufferSize = transferBufferSize;
+	}
+
+	/**
+	 * @return Returns the receiveBufferSize, 0 if the system default is used.
+	 */
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	 * @param receiveBufferSize The SO_RCVBUF of the data connections to set.
+	 *            0 keeps the system default, which is tuned automatically on
+	 *            most systems. A fixed size should be at least bandwidth *
+	 *            round trip time of the link.
+	 */
+	public void setReceiveBufferSize(int receiveBufferSize) {
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	/**
+	 * @return Returns the sendBufferSize, 0 if the system default is used.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * @param sendBufferSize The SO_SNDBUF of the data connections to set. 0
+	 *            keeps the system default.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * @return Returns true if TCP_NODELAY is set on the control connection.
+	 */
+	public boolean isControlTcpNoDelay() {
+		return controlTcpNoDelay;
+	}
+
+	/**
+	 * @param controlTcpNoDelay Set to false to use the Nagle algorithm on the
+	 *            control connection. It takes effect with the next connect().
+	 */
+	public void setControlTcpNoDelay(boolean controlTcpNoDelay) {
+		this.controlTcpNoDelay = controlTcpNoDelay;
+	}
+
+	/**
+	 * @return Returns the trafficClass, -1 if it is not set.
+	 */
+	public int getTrafficClass() {
+		return trafficClass;
+	}
+
+	/**
+	 * @param trafficClass The IP traffic class of the control and data
+	 *            connections to set, -1 leaves it unchanged.
+	 */
+	public void setTrafficClass(int trafficClass) {
+		this.trafficClass = trafficClass;
+	}
+
+	/**
+	 * @return Returns the dataConnectTimeout.
+	 */
+	public int getDataConnectTimeout() {
+		return dataConnectTimeout;
+	}
+
+	/**
+	 * @param dataConnectTimeout The time in milliseconds to wait for a data
+	 *            connection (connect in passive mode, accept in active mode)
+	 *            to set. 0 waits forever.
+	 */
+	public void setDataConnectTimeout(int dataConnectTimeout) {
+		this.dataConnectTimeout = dataConnectTimeout;
+	}
+
 	public boolean isTryResume() {
 		return tryResume;
 	}
@@ -2017,6 +3026,57 @@ public abstract class FTPConnection {
 		return ReplyFormatter.parseMDTMReply(reply);
 	}
 	
+	/**
+	 * Gets the facts of a single file or directory with the MLST command,
+	 * no data connection is needed. The server has to support MLST (see
+	 * isMlstSupport()).
+	 * 
+	 * @param file
+	 *            the file or directory
+	 * @return the file with exact size, UTC modification time and type
+	 * @throws IOException
+	 *             will be thrown if there was a communication problem with the
+	 *             server
+	 * @throws FtpWorkflowException
+	 *             will be thrown if there was a ftp reply class 5xx, f.e. if
+	 *             the file does not exist or MLST is not supported
+	 * @throws FtpIOException
+	 *             will be thrown if there was a ftp reply class 4xx
+	 */
+	public FTPFile getFileInfo(FTPFile file) throws IOException,FtpIOException,FtpWorkflowException
+	{
+		Command mlst = new Command(Command.MLST,file.toString());
+		Reply reply = sendCommand(mlst);
+		reply.dumpReply();
+		reply.validate();
+		// the facts are on the line indented by a space
+		for (int i = 0; i < reply.getLines().size(); i++) {
+			String line = (String) reply.getLines().get(i);
+			if (line.length() == 0 || line.charAt(0) != ' ')
+				continue;
+			if (line.charAt(line.length() - 1) == '\r')
+				line = line.substring(0, line.length() - 1);
+			FTPFile info = mlsxFactory.parseLine(line, file.getPath());
+			if (info != null)
+				return info;
+		}
+		throw new FtpIOException(ReplyCode.REPLY_451,
+				"MLST reply without facts for " + file);
+	}
+	
+	/**
+	 * Gets the size of a file with the SIZE command. Most servers only
+	 * return the size in binary mode (TYPE I).
+	 */
+	public long getFileSize(FTPFile file) throws IOException,FtpIOException,FtpWorkflowException
+	{
+		Command size = new Command(Command.SIZE,file.toString());
+		Reply reply = sendCommand(size);
+		reply.dumpReply();
+		reply.validate();
+		return ReplyFormatter.parseSIZEReply(reply);
+	}
+	
 	public void setModificationTime(FTPFile file,Date date) throws IOException,FtpIOException,FtpWorkflowException,ParseException
 	{
 		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
@@ -2027,6 +3087,26 @@ public abstract class FTPConnection {
 		reply.validate();
 	}
 	
+	/**
+	 * Sets the modification time of all given files with pipelined MDTM
+	 * commands (see sendCommands).
+	 * 
+	 * @return List with one entry for each file: null if the time was set,
+	 *         otherwise the FtpWorkflowException or FtpIOException the reply
+	 *         caused
+	 */
+	public List<Exception> setModificationTime(List<FTPFile> files,Date date) throws IOException
+	{
+		SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMddHHmmss");
+		String dateString = formatter.format(date);
+		List<Command> commands = new ArrayList<Command>(files.size());
+		for (Iterator<FTPFile> it = files.iterator(); it.hasNext();) {
+			FTPFile file = it.next();
+			commands.add(new Command(Command.MDTM,dateString + " " + file.toString()));
+		}
+		return validateReplies(sendCommands(commands));
+	}
+	
 	public void setClientName(String name) throws FtpIOException,FtpWorkflowException,IOException
 	{
 		Command clnt = new Command(Command.CLNT,name);
@@ -2088,6 +3168,8 @@ public abstract class FTPConnection {
 				{
 					setCpsvSupport(true);
 					setSecureFXPType(Command.CPSV);
+				} else if (s.indexOf(Command.MLST) > -1) {
+					setMlstSupport(true);
 				}
 			}
 
@@ -2109,6 +3191,23 @@ public abstract class FTPConnection {
 	public void setSscnSupport(boolean sscnSupport) {
 		this.sscnSupport = sscnSupport;
 	}
+
+	/**
+	 * @return Returns true if the server announced MLST in its FEAT reply,
+	 *         directory listings are fetched with MLSD then.
+	 */
+	public boolean isMlstSupport() {
+		return mlstSupport;
+	}
+
+	/**
+	 * @param mlstSupport
+	 *            The mlstSupport to set. Set it to false after connect() to
+	 *            use LIST for servers with broken MLSD listings.
+	 */
+	public void setMlstSupport(boolean mlstSupport) {
+		this.mlstSupport = mlstSupport;
+	}
 	
 	public void moveFile(FTPFile fromFile,FTPFile toFile) throws FtpWorkflowException,FtpIOException,IOException
 	{
@@ -55,6 +55,22 @@ public class FTPConnectionFactory {
      *            connection.downloadbw = Maximum bytes / second that should be
      *            used for downloading connection.uploadbw = Maximum bytes /
      *            second that should be used for uploading
+     *            connection.streambuffer = Size of the buffer in bytes used
+     *            by downloadStream() (Integer)
+     *            connection.transferbuffer = Size of the buffers in bytes
+     *            used on data connections (Integer)
+     *            connection.receivebuffer = SO_RCVBUF of data connections,
+     *            0 for the system default (Integer)
+     *            connection.sendbuffer = SO_SNDBUF of data connections, 0 for
+     *            the system default (Integer)
+     *            connection.tcpnodelay = TCP_NODELAY of the control
+     *            connection (Boolean, default true)
+     *            connection.trafficclass = IP traffic class of all
+     *            connections (Integer)
+     *            connection.dataconnecttimeout = Timeout in milliseconds to
+     *            establish a data connection (Integer)
+     *            connection.sslengine = Use a SSLEngine for encrypted data
+     *            connections (Boolean, default true)
      * @return FTPConnection the ftpconnection. you can than do a connect() and
      *         login() to connect and login to the server
      * @throws ConfigurationException
@@ -137,13 +153,43 @@ public class FTPConnectionFactory {
         boolean tryResume = false;
         if (pt.getProperty("connection.resume") != null && pt.getProperty("connection.resume").equals("true"))
         	tryResume = true;
-        return FTPConnectionFactory.getInstance(pt
+        FTPConnection connection = FTPConnectionFactory.getInstance(pt
                 .getProperty("connection.host"), port, pt
                 .getProperty("user.login"), pt.getProperty("user.password"), pt
                 .getProperty("user.account"), connectionTimeout,
                 connectionType, passive, downloadBandwidth, uploadBandwidth,
                 proxyType, proxyHost, proxyPort, proxyUser, proxyPass,
                 proxyTimeout,tryResume);
+        if (pt.getProperty("connection.streambuffer") != null)
+            connection.setStreamBufferSize(Integer.parseInt(pt
+                    .getProperty("connection.streambuffer")));
+        if (pt.getProperty("connection.transferbuffer") != null) {
+            int transferBuffer = Integer.parseInt(pt
+                    .getProperty("connection.transferbuffer"));
+            if (transferBuffer < 1)
+                throw new ConfigurationException(
+                        "connection.transferbuffer must be at least 1");
+            connection.setTransferBufferSize(transferBuffer);
+        }
+        if (pt.getProperty("connection.receivebuffer") != null)
+            connection.setReceiveBufferSize(Integer.parseInt(pt
+                    .getProperty("connection.receivebuffer")));
+        if (pt.getProperty("connection.sendbuffer") != null)
+            connection.setSendBufferSize(Integer.parseInt(pt
+                    .getProperty("connection.sendbuffer")));
+        if (pt.getProperty("connection.tcpnodelay") != null)
+            connection.setControlTcpNoDelay(Boolean.valueOf(
+                    pt.getProperty("connection.tcpnodelay")).booleanValue());
+        if (pt.getProperty("connection.trafficclass") != null)
+            connection.setTrafficClass(Integer.parseInt(pt
+                    .getProperty("connection.trafficclass")));
+        if (pt.getProperty("connection.dataconnecttimeout") != null)
+            connection.setDataConnectTimeout(Integer.parseInt(pt
+                    .getProperty("connection.dataconnecttimeout")));
+        if (pt.getProperty("connection.sslengine") != null)
+            connection.setSSLEngineTransport(Boolean.valueOf(
+                    pt.getProperty("connection.sslengine")).booleanValue());
+        return connection;
 
     }
 
@@ -0,0 +1,995 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.commands.Command;
+import org.ftp4che.exception.ConfigurationException;
+import org.ftp4che.exception.FtpIOException;
+import org.ftp4che.exception.FtpWorkflowException;
+import org.ftp4che.io.RateLimiter;
+import org.ftp4che.proxy.Proxy;
+import org.ftp4che.reply.ReplyCode;
+
+/**
+ * A thread safe pool of logged in FTPConnections. The connections are created
+ * with the FTPConnectionFactory and pooled by their properties (host, port,
+ * user, password, connection type and all other settings), so connect(),
+ * login, FEAT and SYST are only done once for every pooled connection and a
+ * connection is only given to callers with the same properties.
+ * 
+ * A connection is taken with borrowConnection() and has to be given back with
+ * returnConnection() (or invalidateConnection() if it should not be used
+ * again). When it is returned the working directory, transfer type and data
+ * channel protection are reset to the state after login, and the settings a
+ * borrower may have changed (bandwidth, rate limiters, passive mode, buffers,
+ * socket options, SSL settings, server features) are restored to the values
+ * the connection was created with. Idle connections are checked with NOOP and
+ * closed after maxIdleTime by a background thread.
+ * 
+ * The bandwidth of all transfers of the pooled connections can be limited per
+ * host (setHostDownloadBandwidth(), setHostUploadBandwidth()) and in total
+ * (setDownloadRateLimiter(), setUploadRateLimiter()). The limiters are given
+ * to every borrowed connection, the bandwidth of the connection itself is
+ * still limited by its downloadBandwidth and uploadBandwidth. Changes apply
+ * to running transfers.
+ */
+public class FTPConnectionPool {
+
+    private static final Logger log = Logger.getLogger(FTPConnectionPool.class
+            .getName());
+
+    private int maxTotal = 8;
+
+    private int maxIdle = 8;
+
+    private int minIdle = 0;
+
+    private long maxIdleTime = 5 * 60 * 1000;
+
+    private long validationInterval = 30 * 1000;
+
+    private long borrowTimeout = 30 * 1000;
+
+    private long evictionInterval = 60 * 1000;
+
+    private Map<PoolKey, KeyedPool> pools = new HashMap<PoolKey, KeyedPool>();
+
+    private Map<FTPConnection, PooledConnection> borrowed =
+            new IdentityHashMap<FTPConnection, PooledConnection>();
+
+    private Timer evictor = null;
+
+    private boolean closed = false;
+
+    private RateLimiter downloadRateLimiter = null;
+
+    private RateLimiter uploadRateLimiter = null;
+
+    private int hostDownloadBandwidth = FTPConnection.MAX_DOWNLOAD_BANDWIDTH;
+
+    private int hostUploadBandwidth = FTPConnection.MAX_UPLOAD_BANDWIDTH;
+
+    // host -> RateLimiter[] { download, upload }
+    private Map<String, RateLimiter[]> hostLimiters =
+            new HashMap<String, RateLimiter[]>();
+
+    public FTPConnectionPool() {
+        startEvictor();
+    }
+
+    /**
+     * @param maxTotal
+     *            maximum number of connections (idle and borrowed) per server
+     *            and user
+     * @param maxIdle
+     *            maximum number of idle connections per server and user
+     * @param minIdle
+     *            number of idle connections the eviction thread keeps open per
+     *            server and user
+     */
+    public FTPConnectionPool(int maxTotal, int maxIdle, int minIdle) {
+        setMaxTotal(maxTotal);
+        setMaxIdle(maxIdle);
+        setMinIdle(minIdle);
+        startEvictor();
+    }
+
+    /**
+     * This method is used to get a logged in connection from the pool. If
+     * there is no idle connection for the server and user given in the
+     * properties a new one will be created with
+     * FTPConnectionFactory.getInstance(pt) and connected. If already maxTotal
+     * connections are borrowed the call waits up to borrowTimeout ms.
+     * 
+     * @param pt
+     *            the connection properties, see
+     *            FTPConnectionFactory.getInstance(Properties)
+     * @return FTPConnection a connected connection, it has to be given back
+     *         with returnConnection() or invalidateConnection()
+     * @throws ConfigurationException
+     *             will be thrown if a parameter is missing or invalid
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server
+     * @throws FtpWorkflowException
+     *             will be thrown if the login failed
+     * @throws FtpIOException
+     *             will be thrown if the login failed or no connection was
+     *             available within borrowTimeout ms
+     */
+    public FTPConnection borrowConnection(Properties pt)
+            throws ConfigurationException, IOException, FtpWorkflowException,
+            FtpIOException {
+        PoolKey key = new PoolKey(pt);
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+
+        while (true) {
+            KeyedPool pool;
+            PooledConnection entry = null;
+            synchronized (this) {
+                if (closed)
+                    throw new IllegalStateException("The pool is closed");
+                pool = pools.get(key);
+                if (pool == null) {
+                    pool = new KeyedPool(pt);
+                    pools.put(key, pool);
+                }
+                while (pool.idle.isEmpty()
+                        && pool.active + pool.idle.size() >= maxTotal) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new FtpIOException(ReplyCode.REPLY_421,
+                                "No idle connection to " + key
+                                        + " available within "
+                                        + borrowTimeout + " ms");
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException ie) {
+                        throw new FtpIOException(ReplyCode.REPLY_421,
+                                "Interrupted while waiting for a connection to "
+                                        + key);
+                    }
+                }
+                if (!pool.idle.isEmpty())
+                    entry = pool.idle.removeLast();
+                pool.active++;
+            }
+
+            if (entry == null) {
+                entry = createConnection(pool, pt);
+            } else if (!validate(entry)) {
+                destroy(pool, entry, true);
+                continue;
+            }
+
+            synchronized (this) {
+                borrowed.put(entry.connection, entry);
+                applyRateLimiters(entry.connection, key.host);
+            }
+            return entry.connection;
+        }
+    }
+
+    /**
+     * This method is used to give a borrowed connection back to the pool. The
+     * working directory, the transfer type and the data channel protection are
+     * reset and the settings of the connection are restored (see
+     * FTPConnectionPool). If this fails or the connection is not connected
+     * anymore it will be closed.
+     * 
+     * @param connection
+     *            the connection that was returned by borrowConnection()
+     */
+    public void returnConnection(FTPConnection connection) {
+        PooledConnection entry;
+        synchronized (this) {
+            entry = borrowed.remove(connection);
+        }
+        if (entry == null)
+            throw new IllegalArgumentException(
+                    "The connection was not borrowed from this pool");
+        KeyedPool pool = entry.pool;
+
+        if (!reset(entry)) {
+            destroy(pool, entry, true);
+            return;
+        }
+
+        boolean close = false;
+        synchronized (this) {
+            pool.active--;
+            if (closed || pool.idle.size() >= maxIdle) {
+                close = true;
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                pool.idle.addLast(entry);
+            }
+            notifyAll();
+        }
+        if (close)
+            disconnect(entry);
+    }
+
+    /**
+     * This method is used to give back a borrowed connection that should not
+     * be used again (f.e. after an IOException). The connection will be closed.
+     * 
+     * @param connection
+     *            the connection that was returned by borrowConnection()
+     */
+    public void invalidateConnection(FTPConnection connection) {
+        PooledConnection entry;
+        synchronized (this) {
+            entry = borrowed.remove(connection);
+        }
+        if (entry == null)
+            throw new IllegalArgumentException(
+                    "The connection was not borrowed from this pool");
+        destroy(entry.pool, entry, true);
+    }
+
+    /**
+     * Closes all idle connections and stops the eviction thread. Borrowed
+     * connections are closed when they are returned.
+     */
+    public void close() {
+        List<PooledConnection> idle = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            closed = true;
+            for (Iterator<KeyedPool> it = pools.values().iterator(); it
+                    .hasNext();) {
+                KeyedPool pool = it.next();
+                idle.addAll(pool.idle);
+                pool.idle.clear();
+            }
+            if (evictor != null) {
+                evictor.cancel();
+                evictor = null;
+            }
+            notifyAll();
+        }
+        for (Iterator<PooledConnection> it = idle.iterator(); it.hasNext();)
+            disconnect(it.next());
+    }
+
+    /**
+     * @return Returns the number of idle connections of all servers.
+     */
+    public synchronized int getNumIdle() {
+        int count = 0;
+        for (Iterator<KeyedPool> it = pools.values().iterator(); it.hasNext();)
+            count += it.next().idle.size();
+        return count;
+    }
+
+    /**
+     * @return Returns the number of borrowed connections of all servers.
+     */
+    public synchronized int getNumActive() {
+        return borrowed.size();
+    }
+
+    private PooledConnection createConnection(KeyedPool pool, Properties pt)
+            throws ConfigurationException, IOException, FtpWorkflowException,
+            FtpIOException {
+        FTPConnection connection = null;
+        try {
+            connection = FTPConnectionFactory.getInstance(pt);
+            connection.connect();
+            PooledConnection entry = new PooledConnection(pool, connection,
+                    connection.getWorkDirectory(), new ConnectionSettings(
+                            connection));
+            log.debug("Created pooled connection to " + pool.key);
+            return entry;
+        } catch (ConfigurationException ce) {
+            abortCreation(pool, connection);
+            throw ce;
+        } catch (IOException ioe) {
+            abortCreation(pool, connection);
+            throw ioe;
+        } catch (FtpWorkflowException fwe) {
+            abortCreation(pool, connection);
+            throw fwe;
+        } catch (FtpIOException fioe) {
+            abortCreation(pool, connection);
+            throw fioe;
+        } catch (RuntimeException re) {
+            abortCreation(pool, connection);
+            throw re;
+        }
+    }
+
+    private void abortCreation(KeyedPool pool, FTPConnection connection) {
+        if (connection != null && connection.isConnected())
+            connection.disconnect();
+        synchronized (this) {
+            pool.active--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Checks an idle connection before it is borrowed. NOOP is only sent if
+     * the connection was idle for more than validationInterval ms.
+     */
+    private boolean validate(PooledConnection entry) {
+        FTPConnection connection = entry.connection;
+        if (!connection.isConnected())
+            return false;
+        if (System.currentTimeMillis() - entry.lastUsed < validationInterval)
+            return true;
+        return noOperation(entry);
+    }
+
+    private boolean noOperation(PooledConnection entry) {
+        try {
+            entry.connection.noOperation();
+            entry.lastUsed = System.currentTimeMillis();
+            return true;
+        } catch (Exception e) {
+            log.debug("Pooled connection to " + entry.pool.key
+                    + " failed the health check", e);
+            return false;
+        }
+    }
+
+    private boolean reset(PooledConnection entry) {
+        FTPConnection connection = entry.connection;
+        if (!connection.isConnected()
+                || connection.getConnectionStatus() == FTPConnection.ERROR)
+            return false;
+        try {
+            if (entry.initialDirectory != null
+                    && !entry.initialDirectory.equals(connection
+                            .getWorkDirectory()))
+                connection.changeDirectory(entry.initialDirectory);
+            if (connection.getTransferType() != Command.TYPE_I)
+                connection.setTransferType(true);
+            String protection = connection.getDataChannelProtection();
+            if (protection != null
+                    && !protection.equals(defaultProtection(connection))) {
+                Command prot = new Command(Command.PROT,
+                        defaultProtection(connection));
+                connection.sendCommand(prot).validate();
+            }
+            entry.settings.restore(connection);
+            synchronized (this) {
+                applyRateLimiters(connection, entry.pool.key.host);
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not reset pooled connection to " + entry.pool.key
+                    + ", closing it", e);
+            return false;
+        }
+    }
+
+    private static String defaultProtection(FTPConnection connection) {
+        switch (connection.getConnectionType()) {
+        case FTPConnection.AUTH_SSL_FTP_CONNECTION:
+        case FTPConnection.AUTH_TLS_FTP_CONNECTION:
+        case FTPConnection.IMPLICIT_SSL_WITH_CRYPTED_DATA_FTP_CONNECTION:
+        case FTPConnection.IMPLICIT_TLS_WITH_CRYPTED_DATA_FTP_CONNECTION:
+            return "P";
+        }
+        return "C";
+    }
+
+    private void destroy(KeyedPool pool, PooledConnection entry,
+            boolean active) {
+        synchronized (this) {
+            if (active)
+                pool.active--;
+            notifyAll();
+        }
+        disconnect(entry);
+    }
+
+    private void disconnect(PooledConnection entry) {
+        try {
+            if (entry.connection.isConnected())
+                entry.connection.disconnect();
+        } catch (Exception e) {
+            log.debug("Error closing pooled connection to " + entry.pool.key,
+                    e);
+        }
+    }
+
+    /**
+     * Closes connections that were idle for more than maxIdleTime, checks the
+     * remaining idle connections with NOOP and opens connections until every
+     * server has minIdle idle connections.
+     */
+    void evict() {
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        List<PooledConnection> check = new ArrayList<PooledConnection>();
+        List<KeyedPool> refill = new ArrayList<KeyedPool>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed)
+                return;
+            for (Iterator<KeyedPool> it = pools.values().iterator(); it
+                    .hasNext();) {
+                KeyedPool pool = it.next();
+                // idle connections of this server which are kept
+                int kept = 0;
+                for (Iterator<PooledConnection> idle = pool.idle.iterator();
+                        idle.hasNext();) {
+                    PooledConnection entry = idle.next();
+                    idle.remove();
+                    if (now - entry.lastUsed > maxIdleTime
+                            && pool.idle.size() + kept >= minIdle) {
+                        expired.add(entry);
+                    } else {
+                        check.add(entry);
+                        kept++;
+                    }
+                    // taken out of the idle list while it is checked
+                    pool.active++;
+                }
+            }
+        }
+
+        for (Iterator<PooledConnection> it = expired.iterator(); it
+                .hasNext();) {
+            PooledConnection entry = it.next();
+            log.debug("Closing idle connection to " + entry.pool.key);
+            destroy(entry.pool, entry, true);
+        }
+        for (Iterator<PooledConnection> it = check.iterator(); it.hasNext();) {
+            PooledConnection entry = it.next();
+            if (entry.connection.isConnected()
+                    && (now - entry.lastUsed < validationInterval || noOperation(entry))) {
+                synchronized (this) {
+                    entry.pool.active--;
+                    if (closed)
+                        expired.add(entry);
+                    else
+                        entry.pool.idle.addLast(entry);
+                    notifyAll();
+                }
+            } else {
+                destroy(entry.pool, entry, true);
+            }
+        }
+
+        synchronized (this) {
+            for (Iterator<KeyedPool> it = pools.values().iterator(); it
+                    .hasNext();) {
+                KeyedPool pool = it.next();
+                int missing = Math.min(minIdle - pool.idle.size(), maxTotal
+                        - pool.active - pool.idle.size());
+                for (int i = 0; i < missing; i++) {
+                    pool.active++;
+                    refill.add(pool);
+                }
+            }
+        }
+        for (Iterator<KeyedPool> it = refill.iterator(); it.hasNext();) {
+            KeyedPool pool = it.next();
+            try {
+                PooledConnection entry = createConnection(pool,
+                        pool.properties);
+                synchronized (this) {
+                    pool.active--;
+                    if (closed)
+                        expired.add(entry);
+                    else
+                        pool.idle.addLast(entry);
+                    notifyAll();
+                }
+            } catch (Exception e) {
+                log.warn("Could not open idle connection to " + pool.key, e);
+            }
+        }
+    }
+
+    private synchronized void startEvictor() {
+        if (closed)
+            return;
+        if (evictor != null)
+            evictor.cancel();
+        evictor = new Timer("FTPConnectionPool evictor", true);
+        evictor.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    evict();
+                } catch (Exception e) {
+                    log.error("Error evicting idle connections", e);
+                }
+            }
+        }, evictionInterval, evictionInterval);
+    }
+
+    /**
+     * @return Returns the maxTotal.
+     */
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    /**
+     * @param maxTotal
+     *            Maximum number of connections (idle and borrowed) per server
+     *            and user. Default is 8.
+     */
+    public synchronized void setMaxTotal(int maxTotal) {
+        if (maxTotal < 1)
+            throw new IllegalArgumentException("maxTotal must be at least 1");
+        this.maxTotal = maxTotal;
+        notifyAll();
+    }
+
+    /**
+     * @return Returns the maxIdle.
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * @param maxIdle
+     *            Maximum number of idle connections per server and user.
+     *            Default is 8.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return Returns the minIdle.
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * @param minIdle
+     *            Number of idle connections that are kept open per server and
+     *            user. Default is 0. The connections are opened by the
+     *            eviction thread.
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * @return Returns the maxIdleTime.
+     */
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * @param maxIdleTime
+     *            Milliseconds after that an idle connection will be closed.
+     *            Default is 5 minutes.
+     */
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+        startEvictor();
+    }
+
+    /**
+     * @return Returns the validationInterval.
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * @param validationInterval
+     *            Milliseconds a connection may be idle before it is checked
+     *            with NOOP when it is borrowed. Default is 30 seconds, 0 checks
+     *            every connection.
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * @return Returns the borrowTimeout.
+     */
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * @param borrowTimeout
+     *            Milliseconds borrowConnection() waits if maxTotal connections
+     *            are borrowed. Default is 30 seconds.
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @return Returns the evictionInterval.
+     */
+    public long getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    /**
+     * @param evictionInterval
+     *            Milliseconds between two runs of the eviction thread. Default
+     *            is 1 minute.
+     */
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+        startEvictor();
+    }
+
+    /**
+     * @return Returns the limiter of the downloads of all connections.
+     */
+    public synchronized RateLimiter getDownloadRateLimiter() {
+        return downloadRateLimiter;
+    }
+
+    /**
+     * @param downloadRateLimiter
+     *            The limiter of the downloads of all connections to set, null
+     *            if the total bandwidth is not limited. It may be shared with
+     *            other pools or connections.
+     */
+    public synchronized void setDownloadRateLimiter(
+            RateLimiter downloadRateLimiter) {
+        this.downloadRateLimiter = downloadRateLimiter;
+        for (Iterator<RateLimiter[]> it = hostLimiters.values().iterator(); it
+                .hasNext();)
+            it.next()[0].setParent(downloadRateLimiter);
+    }
+
+    /**
+     * @return Returns the limiter of the uploads of all connections.
+     */
+    public synchronized RateLimiter getUploadRateLimiter() {
+        return uploadRateLimiter;
+    }
+
+    /**
+     * @param uploadRateLimiter
+     *            The limiter of the uploads of all connections to set, null
+     *            if the total bandwidth is not limited. It may be shared with
+     *            other pools or connections.
+     */
+    public synchronized void setUploadRateLimiter(
+            RateLimiter uploadRateLimiter) {
+        this.uploadRateLimiter = uploadRateLimiter;
+        for (Iterator<RateLimiter[]> it = hostLimiters.values().iterator(); it
+                .hasNext();)
+            it.next()[1].setParent(uploadRateLimiter);
+    }
+
+    /**
+     * @return Returns the hostDownloadBandwidth.
+     */
+    public synchronized int getHostDownloadBandwidth() {
+        return hostDownloadBandwidth;
+    }
+
+    /**
+     * @param hostDownloadBandwidth
+     *            Bytes per second all downloads from one host may use
+     *            together. Default is FTPConnection.MAX_DOWNLOAD_BANDWIDTH.
+     */
+    public synchronized void setHostDownloadBandwidth(int hostDownloadBandwidth) {
+        this.hostDownloadBandwidth = hostDownloadBandwidth;
+        for (Iterator<RateLimiter[]> it = hostLimiters.values().iterator(); it
+                .hasNext();)
+            it.next()[0].setRate(FTPConnection
+                    .toRate(hostDownloadBandwidth));
+    }
+
+    /**
+     * @return Returns the hostUploadBandwidth.
+     */
+    public synchronized int getHostUploadBandwidth() {
+        return hostUploadBandwidth;
+    }
+
+    /**
+     * @param hostUploadBandwidth
+     *            Bytes per second all uploads to one host may use together.
+     *            Default is FTPConnection.MAX_UPLOAD_BANDWIDTH.
+     */
+    public synchronized void setHostUploadBandwidth(int hostUploadBandwidth) {
+        this.hostUploadBandwidth = hostUploadBandwidth;
+        for (Iterator<RateLimiter[]> it = hostLimiters.values().iterator(); it
+                .hasNext();)
+            it.next()[1].setRate(FTPConnection
+                    .toRate(hostUploadBandwidth));
+    }
+
+    /**
+     * Gives the limiters of the host to the connection, their parents are the
+     * limiters of the pool. The host limiters are created on first use.
+     */
+    private void applyRateLimiters(FTPConnection connection, String host) {
+        RateLimiter[] limiters = hostLimiters.get(host);
+        if (limiters == null) {
+            limiters = new RateLimiter[] {
+                    new RateLimiter(FTPConnection
+                            .toRate(hostDownloadBandwidth),
+                            downloadRateLimiter),
+                    new RateLimiter(FTPConnection.toRate(hostUploadBandwidth),
+                            uploadRateLimiter) };
+            hostLimiters.put(host, limiters);
+        }
+        connection.setDownloadRateLimiter(limiters[0]);
+        connection.setUploadRateLimiter(limiters[1]);
+    }
+
+    /**
+     * The connections of one server and user.
+     */
+    private class KeyedPool {
+        PoolKey key;
+
+        Properties properties;
+
+        LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+        // borrowed connections and connections that are created or checked
+        int active = 0;
+
+        KeyedPool(Properties pt) {
+            this.key = new PoolKey(pt);
+            this.properties = (Properties) pt.clone();
+        }
+    }
+
+    private static class PooledConnection {
+        KeyedPool pool;
+
+        FTPConnection connection;
+
+        String initialDirectory;
+
+        ConnectionSettings settings;
+
+        long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(KeyedPool pool, FTPConnection connection,
+                String initialDirectory, ConnectionSettings settings) {
+            this.pool = pool;
+            this.connection = connection;
+            this.initialDirectory = initialDirectory;
+            this.settings = settings;
+        }
+    }
+
+    /**
+     * The settings of a connection after it was created from the properties
+     * of its pool and logged in. A borrower may change them, they are
+     * restored when the connection is returned, so every borrower gets a
+     * connection that matches the properties it was borrowed with.
+     */
+    private static class ConnectionSettings {
+        int downloadBandwidth;
+
+        int uploadBandwidth;
+
+        boolean passiveMode;
+
+        int pipelineWindow;
+
+        String secureFXPType;
+
+        Proxy proxy;
+
+        TrustManager[] trustManagers;
+
+        KeyManager[] keyManagers;
+
+        // null for plain connections, they do not create a context
+        SSLContext sslContext;
+
+        boolean sslEngineTransport;
+
+        int streamBufferSize;
+
+        long preallocationThreshold;
+
+        boolean mappedDownloads;
+
+        int transferBufferSize;
+
+        int receiveBufferSize;
+
+        int sendBufferSize;
+
+        boolean controlTcpNoDelay;
+
+        int trafficClass;
+
+        int dataConnectTimeout;
+
+        boolean tryResume;
+
+        boolean pretSupport;
+
+        boolean cpsvSupport;
+
+        boolean sscnSupport;
+
+        boolean mlstSupport;
+
+        ConnectionSettings(FTPConnection connection) throws IOException {
+            downloadBandwidth = connection.getDownloadBandwidth();
+            uploadBandwidth = connection.getUploadBandwidth();
+            passiveMode = connection.isPassiveMode();
+            pipelineWindow = connection.getPipelineWindow();
+            secureFXPType = connection.getSecureFXPType();
+            proxy = connection.getProxy();
+            trustManagers = connection.getTrustManagers();
+            keyManagers = connection.getKeyManagers();
+            if (connection.getConnectionType() != FTPConnection.FTP_CONNECTION)
+                sslContext = connection.getSSLContext();
+            sslEngineTransport = connection.isSSLEngineTransport();
+            streamBufferSize = connection.getStreamBufferSize();
+            preallocationThreshold = connection.getPreallocationThreshold();
+            mappedDownloads = connection.isMappedDownloads();
+            transferBufferSize = connection.getTransferBufferSize();
+            receiveBufferSize = connection.getReceiveBufferSize();
+            sendBufferSize = connection.getSendBufferSize();
+            controlTcpNoDelay = connection.isControlTcpNoDelay();
+            trafficClass = connection.getTrafficClass();
+            dataConnectTimeout = connection.getDataConnectTimeout();
+            tryResume = connection.isTryResume();
+            pretSupport = connection.isPretSupport();
+            cpsvSupport = connection.isCpsvSupport();
+            sscnSupport = connection.isSscnSupport();
+            mlstSupport = connection.isMlstSupport();
+        }
+
+        void restore(FTPConnection connection) {
+            // the setters of the bandwidth change the rate of the limiter
+            // of the connection, only call them if needed
+            if (connection.getDownloadBandwidth() != downloadBandwidth)
+                connection.setDownloadBandwidth(downloadBandwidth);
+            if (connection.getUploadBandwidth() != uploadBandwidth)
+                connection.setUploadBandwidth(uploadBandwidth);
+            connection.setPassiveMode(passiveMode);
+            connection.setPipelineWindow(pipelineWindow);
+            connection.setSecureFXPType(secureFXPType);
+            connection.setProxy(proxy);
+            // setting the managers drops the SSLContext
+            if (connection.getTrustManagers() != trustManagers)
+                connection.setTrustManagers(trustManagers);
+            if (connection.getKeyManagers() != keyManagers)
+                connection.setKeyManagers(keyManagers);
+            if (sslContext != null)
+                connection.setSSLContext(sslContext);
+            connection.setSSLEngineTransport(sslEngineTransport);
+            connection.setStreamBufferSize(streamBufferSize);
+            connection.setPreallocationThreshold(preallocationThreshold);
+            connection.setMappedDownloads(mappedDownloads);
+            connection.setTransferBufferSize(transferBufferSize);
+            connection.setReceiveBufferSize(receiveBufferSize);
+            connection.setSendBufferSize(sendBufferSize);
+            connection.setControlTcpNoDelay(controlTcpNoDelay);
+            connection.setTrafficClass(trafficClass);
+            connection.setDataConnectTimeout(dataConnectTimeout);
+            connection.setTryResume(tryResume);
+            connection.setPretSupport(pretSupport);
+            connection.setCpsvSupport(cpsvSupport);
+            connection.setSscnSupport(sscnSupport);
+            connection.setMlstSupport(mlstSupport);
+        }
+    }
+
+    /**
+     * Connections are only shared by callers with the same properties. Host,
+     * port, user and connection type are kept readable for the log, all other
+     * properties (password, proxy, passive mode, bandwidth, buffers, ...) are
+     * compared by a digest, so the password is not kept in the key.
+     */
+    private static class PoolKey {
+        String host;
+
+        String port;
+
+        String user;
+
+        String connectionType;
+
+        String settings;
+
+        PoolKey(Properties pt) {
+            host = pt.getProperty("connection.host", "").toLowerCase();
+            port = pt.getProperty("connection.port", "21").trim();
+            user = pt.getProperty("user.login", "");
+            connectionType = pt.getProperty("connection.type",
+                    "FTP_CONNECTION").toUpperCase();
+            settings = digest(pt);
+        }
+
+        private static String digest(Properties pt) {
+            TreeSet<String> names = new TreeSet<String>(pt
+                    .stringPropertyNames());
+            names.remove("connection.host");
+            names.remove("connection.port");
+            names.remove("user.login");
+            names.remove("connection.type");
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                for (Iterator<String> it = names.iterator(); it.hasNext();) {
+                    String name = it.next();
+                    md.update(name.getBytes("UTF-8"));
+                    md.update((byte) 0);
+                    md.update(pt.getProperty(name).getBytes("UTF-8"));
+                    md.update((byte) 0);
+                }
+                byte[] hash = md.digest();
+                StringBuffer sb = new StringBuffer(hash.length * 2);
+                for (int i = 0; i < hash.length; i++)
+                    sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                            .append(Character.forDigit(hash[i] & 0xf, 16));
+                return sb.toString();
+            } catch (NoSuchAlgorithmException nsae) {
+                // every java platform has to support SHA-256
+                throw new IllegalStateException(nsae.toString());
+            } catch (UnsupportedEncodingException uee) {
+                throw new IllegalStateException(uee.toString());
+            }
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof PoolKey))
+                return false;
+            PoolKey other = (PoolKey) o;
+            return host.equals(other.host) && port.equals(other.port)
+                    && user.equals(other.user)
+                    && connectionType.equals(other.connectionType)
+                    && settings.equals(other.settings);
+        }
+
+        public int hashCode() {
+            return (((host.hashCode() * 31 + port.hashCode()) * 31 + user
+                    .hashCode())
+                    * 31 + connectionType.hashCode())
+                    * 31 + settings.hashCode();
+        }
+
+        public String toString() {
+            return user + "@" + host + ":" + port + " (" + connectionType + ")";
+        }
+    }
+}
@@ -96,9 +96,15 @@ public class Command {
   
     public final static String MLSD = "MLSD";
 
+    public final static String MLST = "MLST";
+
     public final static String PRET = "PRET";
     
     public final static String CPSV = "CPSV";
+
+    public final static String SIZE = "SIZE";
+
+    public final static String ABOR = "ABOR";
     
     String command;
 
@@ -21,37 +21,109 @@ import java.io.IOException;
 
 import org.ftp4che.io.ReplyWorker;
 import org.ftp4che.reply.Reply;
+import org.ftp4che.util.ftpfile.FTPFileFactory;
+import org.ftp4che.util.ftpfile.FTPFileHandler;
 
 public class ListCommand extends DataConnectionCommand {
 
+    private FTPFileFactory fileFactory;
+
+    private FTPFileHandler fileHandler;
+
+    private String parentPath;
+
     public ListCommand(String parameter) {
         super(Command.LIST, parameter);
     }
 
+    /**
+     * @param command
+     *            the listing command, Command.LIST or Command.MLSD
+     * @param parameter
+     *            the directory to list
+     */
+    public ListCommand(String command, String parameter) {
+        super(command, parameter);
+    }
+
     public ListCommand() {
         this(".");
     }
 
+    /**
+     * Reads the listing from the data connection and hands every entry to the
+     * given handler as soon as it was parsed. The listing is never kept in
+     * memory as a whole.
+     * 
+     * @param factory
+     *            the factory used to parse the lines of the listing
+     * @param parentPath
+     *            the path the parsed files will get
+     * @param handler
+     *            the handler receiving the parsed files
+     */
+    public void fetchDataConnectionReply(FTPFileFactory factory,
+            String parentPath, FTPFileHandler handler)
+            throws FileNotFoundException, IOException {
+        setFileFactory(factory);
+        setParentPath(parentPath);
+        setFileHandler(handler);
+        fetchDataConnectionReply();
+    }
+
     // TODO: what todo if you get exception from replyworker ?
     public Reply fetchDataConnectionReply() throws FileNotFoundException,
             IOException {
         ReplyWorker worker = new ReplyWorker(getDataSocket(), this);
-        worker.start();
-        while (worker.getStatus() == ReplyWorker.UNKNOWN) {
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException ie) {
-            }
-        }
-        if (worker.getStatus() == ReplyWorker.FINISHED) {
-            return worker.getReply();
-        } else {
-            if (worker.getCaughtException() instanceof FileNotFoundException)
-                throw (FileNotFoundException) worker.getCaughtException();
-            else
-                throw (IOException) worker.getCaughtException();
-        }
+        worker.execute();
+        worker.waitFor();
+        return worker.getResult();
+
+    }
+
+    /**
+     * @return Returns the fileFactory.
+     */
+    public FTPFileFactory getFileFactory() {
+        return fileFactory;
+    }
+
+    /**
+     * @param fileFactory
+     *            The fileFactory to set.
+     */
+    public void setFileFactory(FTPFileFactory fileFactory) {
+        this.fileFactory = fileFactory;
+    }
+
+    /**
+     * @return Returns the fileHandler.
+     */
+    public FTPFileHandler getFileHandler() {
+        return fileHandler;
+    }
+
+    /**
+     * @param fileHandler
+     *            The fileHandler to set.
+     */
+    public void setFileHandler(FTPFileHandler fileHandler) {
+        this.fileHandler = fileHandler;
+    }
+
+    /**
+     * @return Returns the parentPath.
+     */
+    public String getParentPath() {
+        return parentPath;
+    }
 
+    /**
+     * @param parentPath
+     *            The parentPath to set.
+     */
+    public void setParentPath(String parentPath) {
+        this.parentPath = parentPath;
     }
 
 }
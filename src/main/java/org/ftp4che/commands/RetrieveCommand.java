@@ -18,10 +18,10 @@ package org.ftp4che.commands;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.PipedInputStream;
 import java.nio.ByteBuffer;
 
 import org.ftp4che.io.ReplyWorker;
+import org.ftp4che.io.RingBufferInputStream;
 import org.ftp4che.reply.Reply;
 import org.ftp4che.util.ftpfile.FTPFile;
 
@@ -35,12 +35,16 @@ public class RetrieveCommand extends DataConnectionCommand {
 
     private FTPFile toFile;
     
-    private PipedInputStream inputPipe;
+    private RingBufferInputStream streamBuffer;
     
     private ByteBuffer byteBuffer;
     
     private long resumePosition = -1;
     
+    private long preallocationThreshold = -1;
+    
+    private boolean mappedWrites = false;
+    
     // TODO: throw Exception if fromFile not Exists
 
     public RetrieveCommand(String command, FTPFile fromFile) {
@@ -54,10 +58,10 @@ public class RetrieveCommand extends DataConnectionCommand {
         setToFile(toFile);
     }
     
-    public RetrieveCommand(String command, FTPFile fromFile, PipedInputStream is) {
+    public RetrieveCommand(String command, FTPFile fromFile, RingBufferInputStream is) {
         super(command, fromFile.toString());
         setFromFile(fromFile);
-        setInputPipe(is);
+        setStreamBuffer(is);
     }
     
     public RetrieveCommand(String command, FTPFile fromFile, ByteBuffer bb) {
@@ -78,7 +82,7 @@ public class RetrieveCommand extends DataConnectionCommand {
         
         switch ( method ) {
             case RetrieveCommand.STREAM_BASED:
-                worker = new ReplyWorker(getDataSocket(), this, this.inputPipe, method);
+                worker = new ReplyWorker(getDataSocket(), this, this.streamBuffer, method);
                 break;
             case RetrieveCommand.BYTEBUFFER_BASED:
                 worker = new ReplyWorker(getDataSocket(), this, this.byteBuffer, method);
@@ -88,21 +92,11 @@ public class RetrieveCommand extends DataConnectionCommand {
                 break;
         }
         
-        worker.start();
-        while (worker.getStatus() == ReplyWorker.UNKNOWN) {
-            try {
-                Thread.sleep(20);
-            } catch (InterruptedException ie) {
-            }
-        }
-        if (worker.getStatus() == ReplyWorker.FINISHED) {
-            return worker.getReply();
-        } else {
-            if (worker.getCaughtException() instanceof FileNotFoundException)
-                throw (FileNotFoundException) worker.getCaughtException();
-            else
-                throw (IOException) worker.getCaughtException();
-        }
+        worker.execute();
+        worker.waitFor();
+        if (method == RetrieveCommand.BYTEBUFFER_BASED)
+            setByteBuffer(worker.getDownloadBuffer());
+        return worker.getResult();
     }
 
     /**
@@ -144,10 +138,50 @@ public class RetrieveCommand extends DataConnectionCommand {
 	}
 
     /**
-     * @param inputPipe The inputPipe to set.
+     * @return Returns the minimum number of bytes to download for which the
+     *         local file is allocated with the size of fromFile before the
+     *         transfer, -1 if it is never preallocated.
+     */
+    public long getPreallocationThreshold() {
+        return preallocationThreshold;
+    }
+
+    /**
+     * @param preallocationThreshold The preallocationThreshold to set.
+     */
+    public void setPreallocationThreshold(long preallocationThreshold) {
+        this.preallocationThreshold = preallocationThreshold;
+    }
+
+    /**
+     * @return Returns true if a preallocated file is written through a memory
+     *         mapping.
+     */
+    public boolean isMappedWrites() {
+        return mappedWrites;
+    }
+
+    /**
+     * @param mappedWrites The mappedWrites to set.
+     */
+    public void setMappedWrites(boolean mappedWrites) {
+        this.mappedWrites = mappedWrites;
+    }
+
+    /**
+     * @param streamBuffer The streamBuffer to set.
+     */
+    public void setStreamBuffer(RingBufferInputStream streamBuffer) {
+        this.streamBuffer = streamBuffer;
+    }
+
+    /**
+     * @return Returns the byteBuffer. After a BYTEBUFFER_BASED transfer this
+     *         is the buffer holding the data, it is a larger copy of the
+     *         given buffer if the data did not fit into it.
      */
-    public void setInputPipe(PipedInputStream inputPipe) {
-        this.inputPipe = inputPipe;
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
     }
 
     /**
@@ -0,0 +1,126 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.examples;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.io.ReplyDecoder;
+import org.ftp4che.reply.Reply;
+
+/**
+ * Micro benchmark for decoding multi line control replies (FEAT, HELP, STAT
+ * -LA). It compares the ReplyDecoder with the former implementation of
+ * ReplyWorker.readReply, which appended every chunk to a String and split and
+ * matched the whole reply again after each read.
+ *
+ * Usage: ReplyDecoderBenchmark [lines per reply] [iterations]
+ */
+public class ReplyDecoderBenchmark {
+    private static final Logger log = Logger.getLogger("MAIN");
+
+    // chunk size of a control connection read
+    private static final int CHUNK_SIZE = 1024;
+
+    public static void main(String args[]) throws Exception {
+        int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        StringBuffer sb = new StringBuffer("211-Status follows:\r\n");
+        for (int i = 0; i < lineCount; i++)
+            sb.append("-rw-r--r--   1 ftp      ftp        ").append(i)
+                    .append(" Oct 18 12:00 file").append(i).append(".txt\r\n");
+        sb.append("211 End of status\r\n");
+        byte[] reply = sb.toString().getBytes("ISO-8859-1");
+
+        // warm up
+        for (int i = 0; i < 20; i++) {
+            decodeWithString(reply);
+            decodeWithReplyDecoder(reply, new ReplyDecoder());
+        }
+
+        long start = System.nanoTime();
+        int lines = 0;
+        for (int i = 0; i < iterations; i++)
+            lines += decodeWithString(reply);
+        long stringTime = System.nanoTime() - start;
+
+        ReplyDecoder decoder = new ReplyDecoder();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            lines += decodeWithReplyDecoder(reply, decoder);
+        long decoderTime = System.nanoTime() - start;
+
+        log.info("Reply with " + (lineCount + 2) + " lines (" + reply.length
+                + " bytes), " + iterations + " iterations, " + lines
+                + " lines decoded");
+        log.info("String concatenation / split: "
+                + (stringTime / iterations / 1000) + " us per reply");
+        log.info("ReplyDecoder:                 "
+                + (decoderTime / iterations / 1000) + " us per reply");
+    }
+
+    private static int decodeWithReplyDecoder(byte[] reply,
+            ReplyDecoder decoder) {
+        Reply result = null;
+        for (int offset = 0; result == null && offset < reply.length; offset += CHUNK_SIZE) {
+            decoder.feed(reply, offset, Math.min(CHUNK_SIZE, reply.length
+                    - offset));
+            result = decoder.poll();
+        }
+        return result.getLines().size();
+    }
+
+    /**
+     * The algorithm ReplyWorker.readReply used before, reading from the given
+     * bytes instead of a socket.
+     */
+    private static int decodeWithString(byte[] reply) throws Exception {
+        List<String> lines = new ArrayList<String>();
+        CharsetDecoder charDecoder = Charset.forName("ISO8859-1").newDecoder();
+        String output = "";
+        String out = "";
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        boolean read = true;
+        for (int offset = 0; read && offset < reply.length; offset += CHUNK_SIZE) {
+            buf.clear();
+            buf.put(reply, offset, Math.min(CHUNK_SIZE, reply.length - offset));
+            buf.flip();
+            out = charDecoder.decode(buf).toString();
+            output += out;
+            String[] tmp = output.split("\n");
+
+            if (tmp.length > 0
+                    && tmp[tmp.length - 1].length() > 3
+                    && tmp[tmp.length - 1].endsWith("\r")
+                    && tmp[tmp.length - 1].charAt(3) == ' '
+                    && Pattern.matches("[0-9]+", tmp[tmp.length - 1]
+                            .substring(0, 3))) {
+                String[] stringLines = output.split("\n");
+                for (int i = 0; i < stringLines.length; i++)
+                    lines.add(stringLines[i]);
+                read = false;
+            }
+        }
+        return new Reply(lines).getLines().size();
+    }
+}
@@ -0,0 +1,139 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.examples;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.FTPConnection;
+import org.ftp4che.FTPConnectionFactory;
+import org.ftp4che.io.ReplyWorker;
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * Benchmark for encrypted data connections. A file is downloaded and
+ * uploaded with the SSLEngine transport and with the former implementation,
+ * a SSLSocket layered over the data socket whose streams are read through an
+ * array and copied into the ByteBuffers of the transfer. For both the wall
+ * clock time and the CPU time of all threads are reported.
+ * 
+ * Usage: TLSTransferBenchmark host port user password remote-file
+ * [iterations] [connection type]
+ */
+public class TLSTransferBenchmark {
+    private static final Logger log = Logger.getLogger("MAIN");
+
+    public static void main(String args[]) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Usage: TLSTransferBenchmark host port user "
+                    + "password remote-file [iterations] [connection type]");
+            return;
+        }
+        int iterations = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+        Properties pt = new Properties();
+        pt.setProperty("connection.host", args[0]);
+        pt.setProperty("connection.port", args[1]);
+        pt.setProperty("user.login", args[2]);
+        pt.setProperty("user.password", args[3]);
+        pt.setProperty("connection.type", args.length > 6 ? args[6]
+                : "AUTH_TLS_FTP_CONNECTION");
+        pt.setProperty("connection.passive", "true");
+
+        // the workers run on long living threads, so their CPU time can be
+        // measured
+        ExecutorService executor = Executors
+                .newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "benchmark-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        ReplyWorker.setExecutor(executor);
+
+        int slash = args[4].lastIndexOf('/');
+        FTPFile remote = new FTPFile(slash > 0 ? args[4].substring(0, slash)
+                : "/", args[4].substring(slash + 1));
+        FTPFile upload = new FTPFile(remote.getPath(), remote.getName()
+                + ".benchmark");
+        File local = File.createTempFile("ftp4che", ".benchmark");
+        local.deleteOnExit();
+
+        try {
+            // warm up
+            run(pt, false, remote, upload, local, 2);
+            run(pt, true, remote, upload, local, 2);
+
+            run(pt, false, remote, upload, local, iterations);
+            run(pt, true, remote, upload, local, iterations);
+        } finally {
+            executor.shutdown();
+            ReplyWorker.setExecutor(null);
+        }
+    }
+
+    private static void run(Properties pt, boolean sslEngine, FTPFile remote,
+            FTPFile upload, File local, int iterations) throws Exception {
+        FTPConnection connection = FTPConnectionFactory.getInstance(pt);
+        connection.setSSLEngineTransport(sslEngine);
+        connection.connect();
+        try {
+            long start = System.nanoTime();
+            long cpu = cpuTime();
+            for (int i = 0; i < iterations; i++)
+                connection.downloadFile(remote, new FTPFile(local));
+            report(sslEngine, "download", local.length() * iterations,
+                    System.nanoTime() - start, cpuTime() - cpu);
+
+            start = System.nanoTime();
+            cpu = cpuTime();
+            for (int i = 0; i < iterations; i++)
+                connection.uploadFile(new FTPFile(local), upload);
+            report(sslEngine, "upload  ", local.length() * iterations,
+                    System.nanoTime() - start, cpuTime() - cpu);
+            connection.deleteFile(upload);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void report(boolean sslEngine, String operation,
+            long bytes, long nanos, long cpuNanos) {
+        log.info((sslEngine ? "SSLEngine " : "SSLSocket ") + operation + " "
+                + (bytes / 1024 / 1024) + " MB: " + (nanos / 1000000)
+                + " ms, " + (bytes * 1000L / Math.max(1, nanos)) + " MB/s, CPU "
+                + (cpuNanos / 1000000) + " ms");
+    }
+
+    private static long cpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long sum = 0;
+        for (int i = 0; i < ids.length; i++) {
+            long time = threads.getThreadCpuTime(ids[i]);
+            if (time > 0)
+                sum += time;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,154 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.examples;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.util.ftpfile.FTPFile;
+import org.ftp4che.util.ftpfile.UnixFileParser;
+
+/**
+ * Micro benchmark for parsing unix listings. It compares the UnixFileParser
+ * with its former implementation, which split every line with a regular
+ * expression and created a SimpleDateFormat and Calendar per line. The
+ * listing mixes recent files (time instead of year), old files, directories
+ * and links.
+ *
+ * Usage: UnixFileParserBenchmark [lines] [iterations]
+ */
+public class UnixFileParserBenchmark {
+    private static final Logger log = Logger.getLogger("MAIN");
+
+    private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr",
+            "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+    public static void main(String args[]) throws Exception {
+        int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        String[] lines = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            StringBuffer sb = new StringBuffer();
+            if (i % 10 == 0)
+                sb.append("drwxr-xr-x   2 ftp      ftp          4096 ");
+            else if (i % 10 == 1)
+                sb.append("lrwxrwxrwx   1 ftp      ftp            11 ");
+            else
+                sb.append("-rw-r--r--   1 ftp      ftp      ").append(
+                        i * 1031L).append(' ');
+            sb.append(MONTHS[i % 12]).append(' ').append(1 + i % 28)
+                    .append(' ');
+            if (i % 2 == 0)
+                sb.append(2000 + i % 20);
+            else
+                sb.append(i % 24 < 10 ? "0" : "").append(i % 24).append(":")
+                        .append(i % 60 < 10 ? "0" : "").append(i % 60);
+            sb.append(" file ").append(i).append(".txt");
+            if (i % 10 == 1)
+                sb.append(" -> target").append(i);
+            lines[i] = sb.toString();
+        }
+
+        UnixFileParser parser = new UnixFileParser(Locale.ENGLISH);
+        // warm up
+        for (int i = 0; i < 5; i++) {
+            parseWithSplit(lines);
+            parseWithParser(lines, parser);
+        }
+
+        long start = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++)
+            checksum += parseWithSplit(lines);
+        long splitTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            checksum -= parseWithParser(lines, parser);
+        long parserTime = System.nanoTime() - start;
+
+        log.info("Listing with " + lineCount + " lines, " + iterations
+                + " iterations, "
+                + (checksum == 0 ? "same results" : "DIFFERENT results"));
+        log.info("split / SimpleDateFormat: "
+                + (splitTime / iterations / lineCount) + " ns per line");
+        log.info("UnixFileParser:           "
+                + (parserTime / iterations / lineCount) + " ns per line");
+    }
+
+    private static long parseWithParser(String[] lines, UnixFileParser parser)
+            throws ParseException {
+        long checksum = 0;
+        for (int i = 0; i < lines.length; i++) {
+            FTPFile file = parser.parse(lines[i], "/pub");
+            checksum += file.getSize() + file.getDate().getTime()
+                    + file.getName().length();
+        }
+        return checksum;
+    }
+
+    private static long parseWithSplit(String[] lines) throws ParseException {
+        long checksum = 0;
+        for (int i = 0; i < lines.length; i++)
+            checksum += parseWithSplit(lines[i]);
+        return checksum;
+    }
+
+    /**
+     * The algorithm UnixFileParser.parse used before, without the checks
+     * which do not matter for the generated lines. FTPFile can only be filled
+     * in its package, so the checksum of the decoded fields is returned.
+     */
+    private static long parseWithSplit(String serverString)
+            throws ParseException {
+        String[] tokens = serverString.split(" ++");
+        boolean link = tokens[0].startsWith("l");
+        long size = Long.parseLong(tokens[4]);
+
+        Date date;
+        if (tokens[7].indexOf(":") > 0) {
+            SimpleDateFormat sdf = new SimpleDateFormat("MMM dd yyyy HH:mm",
+                    Locale.ENGLISH);
+            date = sdf.parse(tokens[5] + " " + tokens[6] + " "
+                    + Calendar.getInstance(Locale.ENGLISH).get(Calendar.YEAR)
+                    + " " + tokens[7]);
+            Calendar today = Calendar.getInstance(Locale.ENGLISH);
+            if (date.after(today.getTime())) {
+                today.setTime(date);
+                today.set(Calendar.YEAR, today.get(Calendar.YEAR) - 1);
+                date = today.getTime();
+            }
+        } else {
+            SimpleDateFormat sdf = new SimpleDateFormat("MMM dd yyyy",
+                    Locale.ENGLISH);
+            date = sdf.parse(tokens[5] + " " + tokens[6] + " " + tokens[7]);
+        }
+
+        String name = "";
+        for (int i = 8; i < tokens.length; i++)
+            name += tokens[i] + " ";
+        name = name.trim();
+        if (link)
+            name = name.split("->")[0].trim();
+        return size + date.getTime() + name.length();
+    }
+}
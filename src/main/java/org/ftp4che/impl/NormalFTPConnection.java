@@ -64,6 +64,7 @@ public class NormalFTPConnection extends FTPConnection {
             log.debug("connected to:" + hostAndPort);
             socketProvider.socket().setSoTimeout(getTimeout());
             socketProvider.socket().setKeepAlive(true);
+            configureControlSocket(socketProvider.socket());
         } catch (IOException ioe) {
             String error = "Error connection to:" + hostAndPort;
             log.error(error, ioe);
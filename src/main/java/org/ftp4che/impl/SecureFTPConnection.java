@@ -53,6 +53,7 @@ public class SecureFTPConnection extends FTPConnection {
             log.debug("connected to:" + hostAndPort);
             socketProvider.socket().setSoTimeout(getTimeout());
             socketProvider.socket().setKeepAlive(true);
+            configureControlSocket(socketProvider.socket());
         } catch (IOException ioe) {
             String error = "Error connection to:" + hostAndPort;
             log.error(error, ioe);
@@ -90,7 +91,7 @@ public class SecureFTPConnection extends FTPConnection {
         if (authCommand == null || ReplyCode.isPositiveCompletionReply(reply)) {
             try {
                 socketProvider.setSSLMode(getConnectionType());
-                socketProvider.negotiate(this.getTrustManagers(),this.getKeyManagers());
+                negotiate(socketProvider);
                 if (authCommand == null) {
                     // We are in implicit mode and must read the initial reply
                     (ReplyWorker.readReply(socketProvider)).dumpReply();
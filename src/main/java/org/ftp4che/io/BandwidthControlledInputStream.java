@@ -19,32 +19,30 @@ package org.ftp4che.io;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Stream limiting the bandwidth of the wrapped stream with a RateLimiter. The
+ * received bytes are paid after each read, a single read returns at most
+ * RateLimiter.getChunkSize() bytes.
+ */
 public class BandwidthControlledInputStream extends InputStream {
-    private int bandwidth = 512;
-
     private InputStream in;
 
-    private static int SLEEP_TIME = 1000;
-
-    private int bytesRead;
-
-    private long startTime;
-
-    private static final int CHECKS = 4;
-
-    private int lastSum;
+    private RateLimiter limiter;
 
     public BandwidthControlledInputStream(InputStream in, int bandwidth) {
-        if (bandwidth > this.bandwidth)
-            this.bandwidth = bandwidth / CHECKS;
+        this(in, new RateLimiter(bandwidth));
+    }
+
+    public BandwidthControlledInputStream(InputStream in, RateLimiter limiter) {
         this.in = in;
-        startTime = System.currentTimeMillis();
+        this.limiter = limiter;
     }
 
     public int read() throws IOException {
-        int bytes = in.read();
-        bytesRead++;
-        return bytes;
+        int b = in.read();
+        if (b != -1)
+            limiter.acquire(1);
+        return b;
     }
 
     public int read(byte b[]) throws IOException {
@@ -52,30 +50,14 @@ public class BandwidthControlledInputStream extends InputStream {
     }
 
     public int read(byte b[], int off, int len) throws IOException {
-        int sum = 0;
-        int bytes2read;
-        if ((len - off) > bandwidth)
-            bytes2read = bandwidth;
-        else
-            bytes2read = len - off;
-        int newBytes = in.read(b, off, bytes2read);
-        sum += newBytes;
-        if (newBytes == -1) {
-            try {
-                Thread.sleep(1000 * CHECKS / (bandwidth / lastSum));
-            } catch (InterruptedException ie) {
-            }
-            return -1;
-        }
-        bytesRead += bytes2read;
+        int amount = in.read(b, off, Math.min(len, limiter.getChunkSize()));
+        if (amount > 0)
+            limiter.acquire(amount);
+        return amount;
+    }
 
-        // System.out.println("bytes2read: " + bytes2read);
-        // System.out.println("bytesRead: " + bytesRead);
-        // System.out.println("sum: " + sum);
-        // System.out.println("newBytes: " + newBytes);
-        sleep();
-        lastSum = sum;
-        return sum;
+    public int available() throws IOException {
+        return in.available();
     }
 
     public void close() throws IOException {
@@ -85,17 +67,10 @@ public class BandwidthControlledInputStream extends InputStream {
         }
     }
 
-    private void sleep() {
-        if (bytesRead >= bandwidth) {
-            long duration = System.currentTimeMillis() - startTime;
-            if (duration < 1000 / CHECKS) {
-                try {
-                    Thread.sleep(1000 / CHECKS - duration);
-                } catch (InterruptedException ignore) {
-                }
-            }
-            startTime = System.currentTimeMillis();
-            bytesRead = 0;
-        }
+    /**
+     * @return Returns the limiter.
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
     }
-}
\ No newline at end of file
+}
@@ -19,26 +19,30 @@ package org.ftp4che.io;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Stream limiting the bandwidth of the wrapped stream with a RateLimiter. The
+ * bytes are paid before they are written, in chunks of at most
+ * RateLimiter.getChunkSize() bytes.
+ */
 public class BandwidthControlledOutputStream extends OutputStream {
 
-    private int bandwidth = 512;
-
     private OutputStream out;
 
-    private static int SLEEP_TIME = 1000;
-
-    private int bytesWritten;
+    private RateLimiter limiter;
 
     public BandwidthControlledOutputStream(OutputStream out, int bandwidth) {
-        if (bandwidth > this.bandwidth)
-            this.bandwidth = bandwidth;
+        this(out, new RateLimiter(bandwidth));
+    }
+
+    public BandwidthControlledOutputStream(OutputStream out,
+            RateLimiter limiter) {
         this.out = out;
+        this.limiter = limiter;
     }
 
     public void write(int b) throws IOException {
-        bytesWritten++;
+        limiter.acquire(1);
         out.write(b);
-        sleep();
     }
 
     public void write(byte[] bytes) throws IOException {
@@ -46,32 +50,17 @@ public class BandwidthControlledOutputStream extends OutputStream {
     }
 
     public void write(byte[] bytes, int off, int len) throws IOException {
-        int position = off;
-        int capacity = len;
-
-        while (position < capacity) {
-            int bytes2write;
-            if ((capacity - position) > bandwidth)
-                bytes2write = bandwidth;
-            else
-                bytes2write = capacity - position;
-            out.write(bytes, position, bytes2write);
-            position += bytes2write;
-            bytesWritten += bytes2write;
-            sleep();
+        while (len > 0) {
+            int amount = Math.min(len, limiter.getChunkSize());
+            limiter.acquire(amount);
+            out.write(bytes, off, amount);
+            off += amount;
+            len -= amount;
         }
     }
 
-    private void sleep() {
-        if (bytesWritten >= bandwidth) {
-            try {
-                // System.out.println("sleeping");
-                Thread.sleep(SLEEP_TIME);
-                bytesWritten = 0;
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
-            }
-        }
+    public void flush() throws IOException {
+        out.flush();
     }
 
     public void close() throws IOException {
@@ -80,4 +69,11 @@ public class BandwidthControlledOutputStream extends OutputStream {
             out = null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return Returns the limiter.
+     */
+    public RateLimiter getLimiter() {
+        return limiter;
+    }
+}
@@ -0,0 +1,224 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Socket limiting the bandwidth of a connected socket. A SSLSocket layered
+ * over it reads and writes the TLS records through the limited streams, so
+ * the limiters count the bytes on the wire like the SSLEngine transport does.
+ * All other methods are passed to the wrapped socket.
+ */
+class BandwidthControlledSocket extends Socket {
+    private Socket socket;
+
+    private InputStream in;
+
+    private OutputStream out;
+
+    /**
+     * @param socket
+     *            the connected socket
+     * @param downloadLimiter
+     *            the limiter of the received data, may be null
+     * @param uploadLimiter
+     *            the limiter of the sent data, may be null
+     */
+    BandwidthControlledSocket(Socket socket, RateLimiter downloadLimiter,
+            RateLimiter uploadLimiter) throws IOException {
+        this.socket = socket;
+        in = socket.getInputStream();
+        if (downloadLimiter != null)
+            in = new BandwidthControlledInputStream(in, downloadLimiter);
+        out = socket.getOutputStream();
+        if (uploadLimiter != null)
+            out = new BandwidthControlledOutputStream(out, uploadLimiter);
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return in;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return out;
+    }
+
+    /**
+     * @return null, the channel would bypass the limiters
+     */
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public void connect(SocketAddress endpoint, int timeout)
+            throws IOException {
+        socket.connect(endpoint, timeout);
+    }
+
+    public void bind(SocketAddress bindpoint) throws IOException {
+        socket.bind(bindpoint);
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        socket.setTcpNoDelay(on);
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return socket.getTcpNoDelay();
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        socket.setSoLinger(on, linger);
+    }
+
+    public int getSoLinger() throws SocketException {
+        return socket.getSoLinger();
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        socket.sendUrgentData(data);
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        socket.setOOBInline(on);
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return socket.getOOBInline();
+    }
+
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    public int getSoTimeout() throws SocketException {
+        return socket.getSoTimeout();
+    }
+
+    public void setSendBufferSize(int size) throws SocketException {
+        socket.setSendBufferSize(size);
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return socket.getSendBufferSize();
+    }
+
+    public void setReceiveBufferSize(int size) throws SocketException {
+        socket.setReceiveBufferSize(size);
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return socket.getReceiveBufferSize();
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        socket.setKeepAlive(on);
+    }
+
+    public boolean getKeepAlive() throws SocketException {
+        return socket.getKeepAlive();
+    }
+
+    public void setTrafficClass(int tc) throws SocketException {
+        socket.setTrafficClass(tc);
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return socket.getTrafficClass();
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        socket.setReuseAddress(on);
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return socket.getReuseAddress();
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    public boolean isBound() {
+        return socket.isBound();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public boolean isInputShutdown() {
+        return socket.isInputShutdown();
+    }
+
+    public boolean isOutputShutdown() {
+        return socket.isOutputShutdown();
+    }
+
+    public void setPerformancePreferences(int connectionTime, int latency,
+            int bandwidth) {
+        socket.setPerformancePreferences(connectionTime, latency, bandwidth);
+    }
+
+    public String toString() {
+        return "BandwidthControlledSocket[" + socket + "]";
+    }
+}
@@ -0,0 +1,274 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of direct ByteBuffers and byte arrays used for the
+ * buffers of the control and data connections, so a transfer does not
+ * allocate its buffers again (direct buffers are expensive to allocate and
+ * are only freed by the garbage collector).
+ * 
+ * Buffers are pooled in size classes of powers of two from MIN_BUFFER_SIZE to
+ * MAX_BUFFER_SIZE, a request is served from the smallest class that is large
+ * enough. Larger requests are allocated and not pooled. The pool keeps at
+ * most maxPooledBytes of released buffers, further released buffers are left
+ * to the garbage collector. A buffer must not be used any more after it was
+ * released and must not be released twice.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4096;
+
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = 12;
+
+    private static final int CLASSES = 9;
+
+    private static volatile BufferPool defaultPool = new BufferPool(
+            DEFAULT_MAX_POOLED_BYTES);
+
+    private final long maxPooledBytes;
+
+    // one queue per size class
+    private final List<Queue<ByteBuffer>> directBuffers =
+            new ArrayList<Queue<ByteBuffer>>(CLASSES);
+
+    private final List<Queue<byte[]>> arrays =
+            new ArrayList<Queue<byte[]>>(CLASSES);
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes
+     *            the maximum number of bytes kept by the pool
+     */
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            directBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            arrays.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * @return Returns the pool used by the library.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * @param pool
+     *            The pool used by the library to set. It should be set before
+     *            connections are opened: buffers are released to the pool that
+     *            is the default when they are released, so buffers in use are
+     *            given to the new pool and the outstanding count of the
+     *            previous pool does not go back to 0.
+     */
+    public static void setDefault(BufferPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * @return a cleared direct buffer with a limit of size, the capacity can
+     *         be larger
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (index >= 0) {
+            buffer = directBuffers.get(index).poll();
+            if (buffer != null)
+                pooledBytes.addAndGet(-buffer.capacity());
+        }
+        outstanding.incrementAndGet();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(index >= 0 ? classSize(index)
+                    : size);
+        } else {
+            hits.incrementAndGet();
+            buffer.clear();
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * @return a cleared heap buffer with a limit of size, it is backed by an
+     *         array of acquireArray() (with an array offset of 0)
+     */
+    public ByteBuffer acquireHeap(int size) {
+        return ByteBuffer.wrap(acquireArray(size), 0, size);
+    }
+
+    /**
+     * @return an array of at least size bytes, the content is undefined
+     */
+    public byte[] acquireArray(int size) {
+        int index = sizeClass(size);
+        byte[] array = null;
+        if (index >= 0) {
+            array = arrays.get(index).poll();
+            if (array != null)
+                pooledBytes.addAndGet(-array.length);
+        }
+        outstanding.incrementAndGet();
+        if (array == null) {
+            misses.incrementAndGet();
+            array = new byte[index >= 0 ? classSize(index) : size];
+        } else {
+            hits.incrementAndGet();
+        }
+        return array;
+    }
+
+    /**
+     * Gives a buffer of acquire() or acquireHeap() back to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (!buffer.isDirect()) {
+            release(buffer.array());
+            return;
+        }
+        outstanding.decrementAndGet();
+        int index = exactClass(buffer.capacity());
+        if (index >= 0 && reserve(buffer.capacity()))
+            directBuffers.get(index).offer(buffer);
+    }
+
+    /**
+     * Gives an array of acquireArray() back to the pool.
+     */
+    public void release(byte[] array) {
+        if (array == null)
+            return;
+        outstanding.decrementAndGet();
+        int index = exactClass(array.length);
+        if (index >= 0 && reserve(array.length))
+            arrays.get(index).offer(array);
+    }
+
+    private boolean reserve(int bytes) {
+        if (pooledBytes.addAndGet(bytes) <= maxPooledBytes)
+            return true;
+        pooledBytes.addAndGet(-bytes);
+        return false;
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public void clear() {
+        for (int i = 0; i < CLASSES; i++) {
+            ByteBuffer buffer;
+            while ((buffer = directBuffers.get(i).poll()) != null)
+                pooledBytes.addAndGet(-buffer.capacity());
+            byte[] array;
+            while ((array = arrays.get(i).poll()) != null)
+                pooledBytes.addAndGet(-array.length);
+        }
+    }
+
+    /**
+     * @return the index of the smallest class for the size, -1 if it is too
+     *         large to be pooled
+     */
+    private static int sizeClass(int size) {
+        if (size > MAX_BUFFER_SIZE)
+            return -1;
+        if (size <= MIN_BUFFER_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * @return the index of the class with exactly this size, -1 if there is
+     *         none (the buffer was not allocated by the pool)
+     */
+    private static int exactClass(int capacity) {
+        if (capacity < MIN_BUFFER_SIZE || capacity > MAX_BUFFER_SIZE
+                || Integer.bitCount(capacity) != 1)
+            return -1;
+        return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+    }
+
+    private static int classSize(int index) {
+        return 1 << (index + MIN_SHIFT);
+    }
+
+    /**
+     * @return Returns the number of requests served from the pool.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Returns the number of requests that allocated a new buffer.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Returns the number of buffers taken and not released yet. It
+     *         is only exact if the default pool was not changed while buffers
+     *         were in use (see setDefault()).
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return Returns the number of bytes of the buffers kept by the pool.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return Returns the maxPooledBytes.
+     */
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public String toString() {
+        return "BufferPool[hits=" + getHits() + ", misses=" + getMisses()
+                + ", outstanding=" + getOutstanding() + ", pooledBytes="
+                + getPooledBytes() + "/" + maxPooledBytes + "]";
+    }
+}
@@ -0,0 +1,234 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket limiting the bandwidth of one or more transfers. The bucket is
+ * filled continuously with rate tokens (bytes) per second up to the burst
+ * size. A transfer takes the tokens for every chunk it reads or writes with
+ * acquire(); if there are not enough tokens the tokens are taken anyway and
+ * the caller sleeps until the debt is paid. So callers are served in the
+ * order they asked and the average rate is exact, independent of the chunk
+ * sizes.
+ * 
+ * Limiters can be chained: acquire() takes the tokens from the limiter and
+ * all of its parents and sleeps as long as the slowest of them needs. A
+ * limiter per transfer or connection with a parent per host and a global
+ * parent limits every level at once, the parents can be shared by any number
+ * of connections.
+ * 
+ * Rate and parent can be changed while transfers use the limiter, the
+ * transfers check the limiter for every chunk.
+ */
+public class RateLimiter {
+    /**
+     * Rate of a limiter that does not limit, only its parents do
+     */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    // the burst is the amount of data for this time, it is also the largest
+    // chunk read or written at once
+    private static final long BURST_NANOS = 50L * 1000 * 1000;
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    // parent, rate and burst are read without locking, only the tokens are
+    // guarded by the lock of the limiter
+    private volatile RateLimiter parent;
+
+    private volatile long rate;
+
+    private volatile long burst;
+
+    // may be negative if there are outstanding reservations
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * @param rate
+     *            the rate in bytes per second or UNLIMITED
+     */
+    public RateLimiter(long rate) {
+        this(rate, null);
+    }
+
+    /**
+     * @param rate
+     *            the rate in bytes per second or UNLIMITED
+     * @param parent
+     *            the limiter that has to grant the bandwidth, too. May be null.
+     */
+    public RateLimiter(long rate, RateLimiter parent) {
+        this.parent = parent;
+        lastRefill = System.nanoTime();
+        setRate(rate);
+        tokens = burst;
+    }
+
+    /**
+     * @return Returns the rate in bytes per second.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param rate
+     *            The rate in bytes per second or UNLIMITED to set. Tokens that
+     *            were taken before are not changed.
+     */
+    public synchronized void setRate(long rate) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("The rate has to be positive: "
+                    + rate);
+        refill(System.nanoTime());
+        this.rate = rate;
+        burst = rate == UNLIMITED ? UNLIMITED : Math.max(1, rate
+                * BURST_NANOS / NANOS_PER_SECOND);
+        if (tokens > burst)
+            tokens = burst;
+    }
+
+    /**
+     * @return Returns the parent.
+     */
+    public RateLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * @param parent
+     *            The parent to set, null if only this limiter limits.
+     */
+    public void setParent(RateLimiter parent) {
+        for (RateLimiter limiter = parent; limiter != null; limiter = limiter.parent) {
+            if (limiter == this)
+                throw new IllegalArgumentException(
+                        "A limiter can not be its own parent");
+        }
+        this.parent = parent;
+    }
+
+    /**
+     * @return Returns true if this limiter or one of its parents has a rate.
+     */
+    public boolean isLimited() {
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent) {
+            if (limiter.rate != UNLIMITED)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Returns the largest chunk that should be transferred at once,
+     *         so a single read or write does not exceed the burst of any
+     *         limiter in the chain. Integer.MAX_VALUE if no limiter limits.
+     */
+    public int getChunkSize() {
+        long chunk = Integer.MAX_VALUE;
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent)
+            chunk = Math.min(chunk, limiter.burst);
+        return (int) chunk;
+    }
+
+    /**
+     * Takes the tokens for the given amount of data from this limiter and its
+     * parents and blocks until all of them granted the bandwidth. Writers call
+     * it before sending, readers after receiving the data.
+     * 
+     * @param bytes
+     *            the number of bytes
+     * @throws InterruptedIOException
+     *             will be thrown if the thread was interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytes <= 0 || !isLimited())
+            return;
+        long now = System.nanoTime();
+        long wait = 0;
+        for (RateLimiter limiter = this; limiter != null; limiter = limiter.parent)
+            wait = Math.max(wait, limiter.reserve(bytes, now));
+        if (wait > 0)
+            sleep(wait);
+    }
+
+    /**
+     * @return the largest chunk the limiter allows, at most max. max if the
+     *         limiter is null.
+     */
+    static int chunkSize(RateLimiter limiter, int max) {
+        return limiter == null ? max : Math.min(max, limiter.getChunkSize());
+    }
+
+    /**
+     * Calls acquire(bytes) if the limiter is not null.
+     */
+    static void acquire(RateLimiter limiter, long bytes)
+            throws InterruptedIOException {
+        if (limiter != null)
+            limiter.acquire(bytes);
+    }
+
+    /**
+     * @return the time in nanoseconds until the reserved tokens are
+     *         available
+     */
+    private synchronized long reserve(long bytes, long now) {
+        if (rate == UNLIMITED)
+            return 0;
+        refill(now);
+        tokens -= bytes;
+        if (tokens >= 0)
+            return 0;
+        return (long) (-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0)
+            return;
+        lastRefill = now;
+        if (rate == UNLIMITED)
+            return;
+        tokens = Math.min(burst, tokens + (double) elapsed * rate
+                / NANOS_PER_SECOND);
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for bandwidth");
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    public String toString() {
+        return "RateLimiter[rate="
+                + (getRate() == UNLIMITED ? "unlimited" : getRate() + "B/s")
+                + (parent != null ? ", parent=" + parent : "") + "]";
+    }
+}
@@ -0,0 +1,310 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.reply.Reply;
+import org.ftp4che.util.ReplyFormatter;
+
+/**
+ * Incremental decoder for replies on the control connection. The received
+ * bytes are kept in one reusable buffer per connection which is scanned for
+ * line ends, so a reply is never copied or split more than once. The decoder
+ * follows the reply structure of RFC 959: a single line reply is "NNN text", a
+ * multi line reply starts with "NNN-text" and ends with the first line starting
+ * with "NNN text" (same code). As soon as this final line was seen the reply is
+ * complete; bytes received after it stay in the buffer for the next reply.
+ * The same scanner is used to read the lines of a listing from a data
+ * connection (see readLine()).
+ */
+public class ReplyDecoder {
+    private static final Logger log = Logger.getLogger(ReplyDecoder.class
+            .getName());
+
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private byte[] buffer;
+
+    // buffer[start, limit) holds the received but not yet consumed bytes,
+    // buffer[start, scan) is already known to contain no line end
+    private int start = 0;
+
+    private int scan = 0;
+
+    private int limit = 0;
+
+    private List<String> lines = new ArrayList<String>();
+
+    private int replyCode = -1;
+
+    public ReplyDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *            the initial size of the buffer, it is taken from the
+     *            BufferPool and has to be given back with release()
+     */
+    public ReplyDecoder(int bufferSize) {
+        buffer = BufferPool.getDefault().acquireArray(bufferSize);
+    }
+
+    /**
+     * Gives the buffer back to the BufferPool. The decoder must not be used
+     * afterwards.
+     */
+    public void release() {
+        BufferPool.getDefault().release(buffer);
+        buffer = null;
+    }
+
+    /**
+     * Reads the next reply from the given connection. The call blocks until
+     * the final line of the reply was received or the connection was closed.
+     *
+     * @param socketProvider
+     *            the control connection this decoder belongs to
+     * @return the reply. If the connection was closed before the reply was
+     *         complete, the lines received so far are returned.
+     * @throws IOException
+     *             will be thrown if there was a problem reading from the socket
+     */
+    public Reply readReply(SocketProvider socketProvider) throws IOException {
+        Reply reply;
+        while ((reply = poll()) == null) {
+            ensureSpace();
+            int amount = socketProvider.read(buffer, limit, buffer.length
+                    - limit);
+            if (amount < 0)
+                return endOfStream();
+            if (log.isDebugEnabled()) {
+                log.debug("Read data from server (String) ->"
+                        + new String(buffer, limit, amount, charset));
+                byte[] bytes = new byte[amount];
+                System.arraycopy(buffer, limit, bytes, 0, amount);
+                log.debug("Read data from server (bytes) -> "
+                        + ReplyFormatter.displayBytes(bytes));
+            }
+            limit += amount;
+        }
+        return reply;
+    }
+
+    /**
+     * Reads the next line from the given connection. Line ends may be CRLF or
+     * LF, they are not part of the returned line.
+     *
+     * @param socketProvider
+     *            the connection to read from
+     * @return the line or null if the connection was closed and all lines
+     *         were returned
+     * @throws IOException
+     *             will be thrown if there was a problem reading from the socket
+     */
+    public String readLine(SocketProvider socketProvider) throws IOException {
+        while (true) {
+            String line = pollLine();
+            if (line != null)
+                return line;
+            ensureSpace();
+            int amount = socketProvider.read(buffer, limit, buffer.length
+                    - limit);
+            if (amount < 0)
+                return drainLine();
+            limit += amount;
+        }
+    }
+
+    /**
+     * Returns the next complete line of the bytes given to feed() without
+     * blocking. Line ends may be CRLF or LF, they are not part of the
+     * returned line.
+     *
+     * @return the line or null if more data is needed
+     */
+    public String pollLine() {
+        byte[] buf = buffer;
+        for (int i = scan; i < limit; i++) {
+            if (buf[i] == '\n') {
+                String line = takeLine(i);
+                start = scan = i + 1;
+                return line;
+            }
+        }
+        scan = limit;
+        return null;
+    }
+
+    /**
+     * Returns the remaining bytes as last line after the end of the stream
+     * was reached.
+     *
+     * @return the line or null if there are no remaining bytes
+     */
+    public String drainLine() {
+        if (limit == start)
+            return null;
+        String line = takeLine(limit);
+        start = scan = limit;
+        return line;
+    }
+
+    private String takeLine(int end) {
+        if (end > start && buffer[end - 1] == '\r')
+            end--;
+        return new String(buffer, start, end - start, charset);
+    }
+
+    /**
+     * Appends received bytes to the decoder without blocking.
+     *
+     * @param data
+     *            the received bytes, the buffer will be consumed completely
+     */
+    public void feed(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            ensureSpace();
+            int amount = Math.min(data.remaining(), buffer.length - limit);
+            data.get(buffer, limit, amount);
+            limit += amount;
+        }
+    }
+
+    /**
+     * Appends received bytes to the decoder without blocking.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        while (length > 0) {
+            ensureSpace();
+            int amount = Math.min(length, buffer.length - limit);
+            System.arraycopy(data, offset, buffer, limit, amount);
+            limit += amount;
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    /**
+     * Decodes the buffered bytes.
+     *
+     * @return the next complete reply or null if more data is needed
+     */
+    public Reply poll() {
+        byte[] buf = buffer;
+        for (int i = scan; i < limit; i++) {
+            if (buf[i] != '\n')
+                continue;
+            // lines keep the trailing '\r' like the rest of the library
+            // expects it (see Reply.dumpReply())
+            boolean last = addLine(start, i - start);
+            start = i + 1;
+            if (last) {
+                scan = start;
+                return takeReply();
+            }
+        }
+        scan = limit;
+        return null;
+    }
+
+    /**
+     * @return Returns true if there are received bytes that were not yet
+     *         returned as part of a reply.
+     */
+    public boolean hasPendingData() {
+        return limit > start || lines.size() > 0;
+    }
+
+    private boolean addLine(int offset, int length) {
+        String line = new String(buffer, offset, length, charset);
+        if (log.isDebugEnabled())
+            log.debug("Adding line to result list -> " + line);
+        lines.add(line);
+        int code = parseReplyCode(offset, length);
+        if (replyCode == -1) {
+            // text in front of the first reply line will be kept but can not
+            // terminate the reply
+            if (code == -1)
+                return false;
+            replyCode = code;
+            return length == 3 || buffer[offset + 3] != '-';
+        }
+        return code == replyCode
+                && (length == 3 || buffer[offset + 3] != '-');
+    }
+
+    private int parseReplyCode(int offset, int length) {
+        if (length < 3)
+            return -1;
+        int code = 0;
+        for (int i = offset; i < offset + 3; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            code = code * 10 + digit;
+        }
+        if (length > 3) {
+            byte separator = buffer[offset + 3];
+            if (separator != ' ' && separator != '-' && separator != '\r')
+                return -1;
+        }
+        return code;
+    }
+
+    private Reply takeReply() {
+        Reply reply = new Reply(lines);
+        lines.clear();
+        replyCode = -1;
+        return reply;
+    }
+
+    private Reply endOfStream() {
+        if (limit > start) {
+            lines.add(new String(buffer, start, limit - start, charset));
+            start = scan = limit;
+        }
+        return takeReply();
+    }
+
+    private void ensureSpace() {
+        if (limit < buffer.length)
+            return;
+        if (start > 0) {
+            int remaining = limit - start;
+            System.arraycopy(buffer, start, buffer, 0, remaining);
+            scan -= start;
+            limit = remaining;
+            start = 0;
+        } else {
+            // a single line does not fit into the buffer
+            byte[] larger = BufferPool.getDefault().acquireArray(
+                    buffer.length * 2);
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            BufferPool.getDefault().release(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -18,20 +18,23 @@ package org.ftp4che.io;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.RandomAccessFile;
 
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Logger;
 import org.ftp4che.commands.Command;
@@ -39,9 +42,16 @@ import org.ftp4che.commands.ListCommand;
 import org.ftp4che.commands.RetrieveCommand;
 import org.ftp4che.commands.StoreCommand;
 import org.ftp4che.reply.Reply;
-import org.ftp4che.util.ReplyFormatter;
-
-public class ReplyWorker extends Thread {
+import org.ftp4che.util.ftpfile.FTPFile;
+import org.ftp4che.util.ftpfile.FTPFileFactory;
+import org.ftp4che.util.ftpfile.FTPFileHandler;
+
+/**
+ * Transfers the data of a command on its data connection. A worker is a task
+ * for the executor set by setExecutor(), so no thread is created per transfer
+ * if there is one.
+ */
+public class ReplyWorker implements Runnable {
     public static final Logger log = Logger.getLogger(ReplyWorker.class
             .getName());
 
@@ -57,9 +67,7 @@ public class ReplyWorker extends Thread {
 
     private SocketProvider socketProvider;
     
-    private PipedInputStream inputPipe;
-    
-    private PipedOutputStream outputPipe;
+    private RingBufferInputStream streamBuffer;
     
     private ByteBuffer downloadBuffer;
     
@@ -71,12 +79,20 @@ public class ReplyWorker extends Thread {
 
     private CharsetDecoder charDecoder = charset.newDecoder();
 
-    private ByteBuffer buffer = ByteBuffer.allocate(16384);
+    private static final int LIST_BUFFER_SIZE = 16384;
+
+    private static final long MAPPED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private ByteBuffer buffer = null;
 
     private int status = ReplyWorker.UNKNOWN;
 
     private Reply reply;
 
+    private static volatile Executor executor = null;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
     public ReplyWorker(SocketProvider sc, Command command) {
         setSocketProvider(sc);
         setCommand(command);
@@ -89,9 +105,7 @@ public class ReplyWorker extends Thread {
         
         switch ( getDownloadMethod() ) {
             case RetrieveCommand.STREAM_BASED:
-                setInputPipe((PipedInputStream) res);
-                outputPipe = new PipedOutputStream();
-                inputPipe.connect(outputPipe);
+                setStreamBuffer((RingBufferInputStream) res);
                 break;
             
             case RetrieveCommand.BYTEBUFFER_BASED:
@@ -109,97 +123,209 @@ public class ReplyWorker extends Thread {
 
     public static Reply readReply(SocketProvider socketProvider,
             boolean isListReply) throws IOException {
+        if (isListReply)
+            return readListReply(socketProvider);
+
+        // The socket read blocks until data is available, so the reply is
+        // returned as soon as the final line arrived.
+        return socketProvider.getReplyDecoder().readReply(socketProvider);
+    }
+
+    private static Reply readListReply(SocketProvider socketProvider)
+            throws IOException {
         List lines = new ArrayList();
-        Charset charset = Charset.forName("ISO8859-1");
-        CharsetDecoder charDecoder = charset.newDecoder();
-        Logger log = Logger.getLogger(ReplyWorker.class.getName());
-
-        String output = "";
-		String out = "";
-		ByteBuffer buf = null;
-		if (!isListReply)
-			buf = ByteBuffer.allocateDirect(1024);
-		else
-			buf = ByteBuffer.allocateDirect(16384);
-		int amount;
-		buf.clear();
-		socketProvider.socket().setKeepAlive(true);
-		boolean read = true;
-		while (read && (amount = socketProvider.read(buf)) >= 0) {
-			if (amount == 0) {
-				try {
-					sleep(50);
-				} catch (InterruptedException ie) {
-				}
-				continue;
-			}
-
-			buf.flip();
-			out = charDecoder.decode(buf).toString();
-			log.debug("Read data from server (String) ->" + out);
-			log.debug("Read data from server (bytes) -> "
-					+ ReplyFormatter.displayBytes(out.getBytes()));
-			output += out;
-			buf.clear();
-			String[] tmp = output.split("\n");
-
-			if (!isListReply
-					&& tmp.length > 0
-					&& tmp[tmp.length - 1].length() > 3
-					&& tmp[tmp.length - 1].endsWith("\r")
-					&& tmp[tmp.length - 1].charAt(3) == ' '
-					&& Pattern.matches("[0-9]+", tmp[tmp.length - 1].substring(
-							0, 3))) {
-				String[] stringLines = output.split("\n");
-
-				for (int i = 0; i < stringLines.length; i++) {
-					log
-							.debug("Adding line to result list -> "
-									+ stringLines[i]);
-					lines.add(stringLines[i]);
-				}
-				read = false;
-				output = "";
-				buf.clear();
-			}
-			try {
-				sleep(50);
-			} catch (InterruptedException ie) {
-			}
-		}
-		if (isListReply) {
-			String[] stringLines = output.split("\r\n");
-
-			for (int i = 0; i < stringLines.length; i++) {
-				// Empty lines cause NoSuchElementException in
-				// FTPFile org.ftp4che.util.FTPFile.parseLine(String line)
-				// (unsave use of StringTokenizer.nextToken
-				if (stringLines[i].length() > 0) {
-					log.debug("LIST Reply lines -> " + stringLines[i]);
-					lines.add(stringLines[i]);
-				}
-			}
-			output = "";
-			buf.clear();
-			socketProvider.close();
-		}
+        ReplyDecoder lineReader = new ReplyDecoder(LIST_BUFFER_SIZE);
+        try {
+            String line;
+            while ((line = lineReader.readLine(socketProvider)) != null) {
+                // Empty lines cause NoSuchElementException in
+                // FTPFile org.ftp4che.util.FTPFile.parseLine(String line)
+                // (unsave use of StringTokenizer.nextToken
+                if (line.length() > 0) {
+                    if (log.isDebugEnabled())
+                        log.debug("LIST Reply lines -> " + line);
+                    lines.add(line);
+                }
+            }
+        } finally {
+            socketProvider.close();
+            lineReader.release();
+        }
 
         return new Reply(lines);
     }
 
+    /**
+     * Parses the listing while it is read from the data connection and hands
+     * every entry to the handler of the command.
+     */
+    private static void readListing(SocketProvider socketProvider,
+            ListCommand command) throws IOException {
+        FTPFileFactory factory = command.getFileFactory();
+        FTPFileHandler handler = command.getFileHandler();
+        ReplyDecoder lineReader = new ReplyDecoder(LIST_BUFFER_SIZE);
+        try {
+            String line;
+            while ((line = lineReader.readLine(socketProvider)) != null) {
+                if (line.length() == 0)
+                    continue;
+                FTPFile file = factory.parseLine(line, command.getParentPath());
+                if (file != null)
+                    handler.handleFile(file);
+            }
+        } finally {
+            socketProvider.close();
+            lineReader.release();
+        }
+    }
+
+    /**
+     * Sets the executor the workers are started with (see execute()). If no
+     * executor is set every worker is started as a new thread. The executor
+     * has to run a task at once: a streamed download needs two tasks at the
+     * same time, so a pool with a fixed small size can dead lock.
+     * 
+     * @param executor
+     *            the executor or null to start new threads
+     */
+    public static void setExecutor(Executor executor) {
+        ReplyWorker.executor = executor;
+    }
+
+    /**
+     * @return Returns the executor or null if new threads are started.
+     */
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Runs the workers on virtual threads
+     * (Executors.newVirtualThreadPerTaskExecutor, Java 21 or later).
+     * 
+     * @return true if virtual threads are available and used now
+     */
+    public static boolean useVirtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor", new Class<?>[0]);
+            setExecutor((Executor) factory.invoke(null, new Object[0]));
+            return true;
+        } catch (Exception e) {
+            log.info("Virtual threads are not available: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task with the executor of the workers or as a new thread.
+     */
+    public static void submitTask(Runnable task) {
+        Executor current = executor;
+        if (current == null)
+            new Thread(task).start();
+        else
+            current.execute(task);
+    }
+
+    /**
+     * Starts this worker with the executor set by setExecutor() or as a new
+     * thread if there is none. Use waitFor() to wait until it finished.
+     */
+    public void execute() {
+        Executor current = executor;
+        if (current == null)
+            start();
+        else
+            current.execute(this);
+    }
+
+    /**
+     * Starts this worker as a new thread, like it was started when
+     * ReplyWorker was a Thread. Use waitFor() to wait until it finished.
+     */
+    public void start() {
+        new Thread(this).start();
+    }
+
+    /**
+     * Waits until the worker finished. Interrupts do not stop the waiting
+     * (the transfer would be left in an unknown state), the interrupt status
+     * is set again afterwards.
+     */
+    public void waitFor() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return the reply of a worker that finished successfully
+     * @throws FileNotFoundException
+     *             the local file could not be opened
+     * @throws IOException
+     *             there was a problem on the data connection
+     */
+    public Reply getResult() throws FileNotFoundException, IOException {
+        if (getStatus() == ReplyWorker.FINISHED)
+            return getReply();
+        Exception e = getCaughtException();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new IOException("The data connection worker stopped without result");
+    }
+
     public void run() {
+        buffer = BufferPool.getDefault().acquireHeap(
+                getSocketProvider() != null ? getSocketProvider().getBufferSize()
+                        : SocketProvider.DEFAULT_BUFFER_SIZE);
+        try {
+            process();
+        } catch (RuntimeException re) {
+            if (getStatus() == ReplyWorker.UNKNOWN) {
+                setCaughtException(re);
+                setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+            buffer = null;
+            if (getSocketProvider() != null)
+                getSocketProvider().release();
+            finished.countDown();
+        }
+    }
+
+    private void process() {
         if (getCommand() == null)
             throw new IllegalArgumentException("Given command is null!");
         if (getSocketProvider() == null)
             throw new IllegalArgumentException("Given connection is not open!");
 
         if (getCommand() instanceof ListCommand) {
+            ListCommand listCommand = (ListCommand) getCommand();
         	try {
-        		setReply(ReplyWorker.readReply(getSocketProvider(), true));
+        	    if (listCommand.getFileHandler() != null)
+        	        readListing(getSocketProvider(), listCommand);
+        	    else
+        	        setReply(ReplyWorker.readReply(getSocketProvider(), true));
         		setStatus(ReplyWorker.FINISHED);
         	}catch(IOException ioe) {
         		setCaughtException(ioe);
         		setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
+        	}catch(RuntimeException re) {
+        	    // thrown by the file handler
+        	    setCaughtException(re);
+        	    setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
         	}
             
             return;
@@ -212,86 +338,95 @@ public class ReplyWorker extends Thread {
                 try {
                     log.debug("Download file: "
                             + retrieveCommand.getFromFile().toString());
-                    FileOutputStream out = null;
+                    RandomAccessFile file = null;
                     FileChannel channel = null;
+                    long position = (retrieveCommand.getResumePosition() != -1 ? retrieveCommand.getResumePosition() : 0);
+                    boolean preallocated = false;
                     
                     if (getDownloadMethod() == RetrieveCommand.FILE_BASED) {
-                        out = new FileOutputStream(retrieveCommand.getToFile().getFile());
-                        channel = out.getChannel();
-                        if(retrieveCommand.getResumePosition() != -1)
+                        file = new RandomAccessFile(retrieveCommand.getToFile().getFile(), "rw");
+                        channel = file.getChannel();
+                        long expected = retrieveCommand.getFromFile().getSize();
+                        long threshold = retrieveCommand.getPreallocationThreshold();
+                        try
+                        {
+                            // the part of the file in front of the resume
+                            // position is kept
+                            channel.truncate(position);
+                            // the file is allocated with its final size if it
+                            // is known, so the file system can place it in one
+                            // piece and the data can be written with positional
+                            // writes or a mapping
+                            if (threshold >= 0 && expected > position
+                                    && expected - position >= threshold) {
+                                file.setLength(expected);
+                                preallocated = true;
+                            }
+                        }catch (IOException ioe)
                         {
-                        	try
-                        	{
-                        		channel.position(retrieveCommand.getResumePosition());
-                        	}catch (IOException ioe)
-                        	{
-                        		 setCaughtException(ioe);
-                                 setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
-                                 try
-                         		 {
-                         			channel.close();
-                         		 }catch (IOException ioe2) {}
-                         		 return;
-                        	}
+                            setCaughtException(ioe);
+                            setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
+                            try
+                            {
+                                channel.close();
+                            }catch (IOException ioe2) {}
+                            return;
                         }
-                    }else if (getDownloadMethod() == RetrieveCommand.BYTEBUFFER_BASED) {
-                        // TODO: byte buffer handling for resume
                     }
                     int amount;
                     try {
-                        while ((amount = getSocketProvider().read(buffer)) != -1) {
-                            if (amount == 0) {
-                                try {
-                                    Thread.sleep(4);
-                                } catch (InterruptedException e) {
-                                }
-                            }
-                            buffer.flip();
-                            while (buffer.hasRemaining()) {
-                                if (getDownloadMethod() == RetrieveCommand.STREAM_BASED) {
-                                    int rem = buffer.remaining();
-                                    byte[] buf = new byte[rem];
-                                    buffer.get(buf, 0, rem);
-                                    this.outputPipe.write(buf, 0, rem);
-                                }else if (getDownloadMethod() == RetrieveCommand.BYTEBUFFER_BASED) {
-                                    // TODO: byte buffer handling for getting data
-                                }else {
-                                    channel.write(buffer);
+                        long end = position;
+                        if (preallocated && retrieveCommand.isMappedWrites()) {
+                            end = receiveMapped(channel, position, file.length());
+                        // zero copy, the data is not passed through the java
+                        // heap. transferFrom can't write behind the end of
+                        // the file, so this is not used for such a resume
+                        } else if (getDownloadMethod() == RetrieveCommand.FILE_BASED
+                                && getSocketProvider().supportsTransferFrom()
+                                && position <= channel.size()) {
+                            end += getSocketProvider().transferTo(channel, position);
+                        } else if (getDownloadMethod() == RetrieveCommand.STREAM_BASED) {
+                            // the data is received directly into the buffer
+                            // of the stream returned to the caller
+                            while (streamBuffer.receive(getSocketProvider()) != -1)
+                                ;
+                        } else if (getDownloadMethod() == RetrieveCommand.BYTEBUFFER_BASED) {
+                            receiveIntoBuffer();
+                        } else {
+                            while ((amount = getSocketProvider().read(buffer)) != -1) {
+                                if (amount == 0) {
+                                    try {
+                                        Thread.sleep(4);
+                                    } catch (InterruptedException e) {
+                                    }
                                 }
-                            }
+                                buffer.flip();
+                                while (buffer.hasRemaining())
+                                    end += channel.write(buffer, end);
 
-                            buffer.clear();
-                        }
-                        buffer.flip();
-                        while (buffer.hasRemaining()) {
-                            if (getDownloadMethod() == RetrieveCommand.STREAM_BASED) {
-                                int rem = buffer.remaining();
-                                byte[] buf = new byte[rem];
-                                buffer.get(buf, 0, rem);
-                                this.outputPipe.write(buf, 0, rem);
-                            }else if (getDownloadMethod() == RetrieveCommand.BYTEBUFFER_BASED) {
-                                // TODO: byte buffer handling for getting data
-                            }else {
-                                channel.write(buffer);
+                                buffer.clear();
                             }
                         }
-                        buffer.clear();
+                        // the file was smaller than expected
+                        if (preallocated && end < channel.size())
+                            channel.truncate(end);
                         setStatus(ReplyWorker.FINISHED);
                         
                         if (channel != null)
                             channel.close();
-                        if (this.outputPipe != null)
-                            this.outputPipe.close();
                         
                         getSocketProvider().close();
                     } catch (IOException ioe) {
                         setCaughtException(ioe);
                         setStatus(ReplyWorker.ERROR_IO_EXCEPTION);
+                        if (streamBuffer != null)
+                            streamBuffer.fail(ioe);
                     }finally
                     {
                     	try
                     	{
-                    		channel.close();
+                    		if (channel != null)
+                    		    channel.close();
                             getSocketProvider().close();
                     	}catch (Exception e) {}
                     }
@@ -336,6 +471,12 @@ public class ReplyWorker extends Thread {
                     		}
                     	}
                     	try {
+                    		if (getSocketProvider().supportsTransferTo()) {
+                    		    // zero copy, the file is sent without passing
+                    		    // the java heap
+                    		    long position = (storeCommand.getResumePosition() != -1 ? storeCommand.getResumePosition() : 0);
+                    		    getSocketProvider().transferFrom(channel, position, channel.size() - position);
+                    		} else
                     		while ((amount = channel.read(buffer)) != -1) {
                     			buffer.flip();
                     			socketWrite = 0;
@@ -495,10 +636,82 @@ public class ReplyWorker extends Thread {
     }
 
     /**
-     * @param inputPipe The inputPipe to set.
+     * @param streamBuffer The streamBuffer to set.
+     */
+    public void setStreamBuffer(RingBufferInputStream streamBuffer) {
+        this.streamBuffer = streamBuffer;
+    }
+
+    /**
+     * Receives the data connection into a file that was allocated with its
+     * expected size. The file is mapped in windows of MAPPED_WINDOW_SIZE bytes
+     * and the data is read directly into the mapping, so there is no write
+     * call at all. If the file is larger than expected the rest is appended
+     * with positional writes.
+     * 
+     * @return the position behind the last received byte
+     */
+    private long receiveMapped(FileChannel channel, long position, long size)
+            throws IOException {
+        while (position < size) {
+            MappedByteBuffer window = channel.map(MapMode.READ_WRITE,
+                    position, Math.min(MAPPED_WINDOW_SIZE, size - position));
+            while (window.hasRemaining()) {
+                if (getSocketProvider().read(window) == -1)
+                    return position + window.position();
+            }
+            position += window.capacity();
+        }
+        while (getSocketProvider().read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+            buffer.clear();
+        }
+        return position;
+    }
+
+    /**
+     * Receives the data connection into the download buffer. The data is
+     * read directly into the buffer, only if it is full the next chunk is
+     * read into the worker buffer to find out if the download is complete or
+     * if the download buffer has to be replaced by a larger one.
+     */
+    private void receiveIntoBuffer() throws IOException {
+        while (true) {
+            ByteBuffer target = downloadBuffer.hasRemaining() ? downloadBuffer
+                    : buffer;
+            if (getSocketProvider().read(target) == -1)
+                return;
+            if (target == buffer) {
+                buffer.flip();
+                downloadBuffer = growBuffer(downloadBuffer, buffer.remaining());
+                downloadBuffer.put(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * @return a buffer of the same kind (heap or direct) with at least twice
+     *         the capacity, containing the bytes in front of the position of
+     *         the given buffer at the same position
+     */
+    private static ByteBuffer growBuffer(ByteBuffer full, int needed) {
+        int capacity = Math.max(full.capacity() * 2, full.position() + needed);
+        ByteBuffer larger = full.isDirect() ? ByteBuffer
+                .allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        full.flip();
+        larger.put(full);
+        return larger;
+    }
+
+    /**
+     * @return Returns the downloadBuffer. It is replaced by a larger one if
+     *         the data did not fit into the given buffer.
      */
-    public void setInputPipe(PipedInputStream inputPipe) {
-        this.inputPipe = inputPipe;
+    public ByteBuffer getDownloadBuffer() {
+        return downloadBuffer;
     }
 
     /**
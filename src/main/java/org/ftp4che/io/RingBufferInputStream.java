@@ -0,0 +1,292 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded buffer between one thread receiving data (the producer) and one
+ * thread reading it as InputStream (the consumer). It replaces the
+ * PipedInputStream used by FTPConnection.downloadStream(): the producer
+ * receives the data from the data connection directly into the ring (see
+ * receive()), so there is no copy and no allocation per chunk, and both sides
+ * only block if the buffer is empty or full. A blocked side is woken up at
+ * once when the other side made progress, there is no polling.
+ * 
+ * The positions are counted in bytes since the start of the stream, each one
+ * is only changed by its own side, so the lock is only taken to wait or to
+ * wake up a waiting side. A side sets its waiting flag before it checks the
+ * positions a last time, the other side checks the flag after it moved its
+ * position, so no wake up can get lost.
+ */
+public class RingBufferInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final byte[] buffer;
+
+    // written by the producer only
+    private volatile long writePosition = 0;
+
+    // written by the consumer only
+    private volatile long readPosition = 0;
+
+    private volatile boolean finished = false;
+
+    private volatile boolean closed = false;
+
+    private volatile IOException failure = null;
+
+    private volatile boolean consumerWaiting = false;
+
+    private volatile boolean producerWaiting = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition dataAvailable = lock.newCondition();
+
+    private final Condition spaceAvailable = lock.newCondition();
+
+    public RingBufferInputStream() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *            the number of bytes that can be buffered before the producer
+     *            has to wait for the consumer
+     */
+    public RingBufferInputStream(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be > 0: "
+                    + bufferSize);
+        buffer = new byte[bufferSize];
+    }
+
+    /**
+     * @return Returns the size of the buffer.
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    /*
+     * Consumer side
+     */
+
+    public int read() throws IOException {
+        if (!awaitData())
+            return -1;
+        long position = readPosition;
+        int b = buffer[(int) (position % buffer.length)] & 0xff;
+        consumed(position + 1);
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!awaitData())
+            return -1;
+        long position = readPosition;
+        int amount = (int) Math.min(len, writePosition - position);
+        int index = (int) (position % buffer.length);
+        int first = Math.min(amount, buffer.length - index);
+        System.arraycopy(buffer, index, b, off, first);
+        if (first < amount)
+            System.arraycopy(buffer, 0, b, off + first, amount - first);
+        consumed(position + amount);
+        return amount;
+    }
+
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !awaitData())
+            return 0;
+        long position = readPosition;
+        long amount = Math.min(n, writePosition - position);
+        consumed(position + amount);
+        return amount;
+    }
+
+    public int available() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Closes the stream. If the producer is still receiving it gets an
+     * IOException with the next call of receive() or write().
+     */
+    public void close() {
+        closed = true;
+        signal(spaceAvailable);
+    }
+
+    /**
+     * @return true if there is data to read, false at the end of the stream
+     */
+    private boolean awaitData() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+        if (writePosition > readPosition)
+            return true;
+        lock.lock();
+        try {
+            consumerWaiting = true;
+            while (writePosition == readPosition && !finished && !closed)
+                await(dataAvailable);
+        } finally {
+            consumerWaiting = false;
+            lock.unlock();
+        }
+        if (closed)
+            throw new IOException("Stream closed");
+        if (writePosition > readPosition)
+            return true;
+        if (failure != null)
+            throw (IOException) new IOException("Download failed: "
+                    + failure.getMessage()).initCause(failure);
+        return false;
+    }
+
+    private void consumed(long position) {
+        readPosition = position;
+        if (producerWaiting)
+            signal(spaceAvailable);
+    }
+
+    /*
+     * Producer side
+     */
+
+    /**
+     * Reads the next chunk of data from the given connection directly into
+     * the free part of the buffer. Blocks until there is free space.
+     * 
+     * @return the number of bytes received or -1 at the end of the stream of
+     *         the connection
+     * @throws IOException
+     *             if the connection could not be read or the consumer closed
+     *             this stream
+     */
+    public int receive(SocketProvider provider) throws IOException {
+        awaitSpace();
+        long position = writePosition;
+        int index = (int) (position % buffer.length);
+        int free = (int) (buffer.length - (position - readPosition));
+        int amount = provider.read(buffer, index, Math.min(free, buffer.length
+                - index));
+        if (amount > 0)
+            produced(position + amount);
+        return amount;
+    }
+
+    /**
+     * Appends the given bytes, blocks until all of them fit into the buffer.
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            awaitSpace();
+            long position = writePosition;
+            int index = (int) (position % buffer.length);
+            int free = (int) (buffer.length - (position - readPosition));
+            int amount = Math.min(len, Math.min(free, buffer.length - index));
+            System.arraycopy(b, off, buffer, index, amount);
+            produced(position + amount);
+            off += amount;
+            len -= amount;
+        }
+    }
+
+    /**
+     * Marks the end of the stream, the consumer gets -1 after the buffered
+     * data was read.
+     */
+    public void finish() {
+        finished = true;
+        signal(dataAvailable);
+    }
+
+    /**
+     * Ends the stream with an error, the consumer gets an IOException with
+     * the given cause after the buffered data was read.
+     */
+    public void fail(Exception cause) {
+        if (cause instanceof IOException)
+            failure = (IOException) cause;
+        else
+            failure = (IOException) new IOException(cause.getMessage())
+                    .initCause(cause);
+        finish();
+    }
+
+    /**
+     * @return Returns true if the consumer closed the stream.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void awaitSpace() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed by reader");
+        if (writePosition - readPosition < buffer.length)
+            return;
+        lock.lock();
+        try {
+            producerWaiting = true;
+            while (writePosition - readPosition == buffer.length && !closed)
+                await(spaceAvailable);
+        } finally {
+            producerWaiting = false;
+            lock.unlock();
+        }
+        if (closed)
+            throw new IOException("Stream closed by reader");
+    }
+
+    private void produced(long position) {
+        writePosition = position;
+        if (consumerWaiting)
+            signal(dataAvailable);
+    }
+
+    private void await(Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting");
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
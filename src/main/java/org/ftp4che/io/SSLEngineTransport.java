@@ -0,0 +1,487 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TLS on a blocking SocketChannel with a SSLEngine. It is used for encrypted
+ * data connections instead of a SSLSocket layered over the plain socket. The
+ * network buffers are taken from the BufferPool and hold several records, so
+ * a single read or write call on the channel moves more than one record.
+ * Records are decrypted directly into the buffer of the caller if it has room
+ * for a whole record, only smaller reads go through an intermediate buffer.
+ * The buffers are heap buffers: the ciphers of the JDK work on arrays and
+ * copy direct buffers, which costs more than the copy of the channel.
+ * 
+ * The engine should be created with the host and port of the control
+ * connection (SSLContext.createSSLEngine(host, port)), so the TLS session of
+ * the control connection is resumed instead of doing a full handshake for
+ * every transfer.
+ */
+public class SSLEngineTransport {
+    private static final Logger log = Logger.getLogger(SSLEngineTransport.class
+            .getName());
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private SocketChannel channel;
+
+    private SSLEngine engine;
+
+    private int bufferSize;
+
+    // received records that are not unwrapped yet (write mode)
+    private ByteBuffer netIn;
+
+    // wrapped records that were not send yet (write mode)
+    private ByteBuffer netOut;
+
+    // unwrapped data that was not returned by read() yet (read mode)
+    private ByteBuffer appIn;
+
+    private boolean inboundDone = false;
+
+    private RateLimiter downloadLimiter, uploadLimiter;
+
+    public SSLEngineTransport(SocketChannel channel, SSLEngine engine) {
+        this(channel, engine, SocketProvider.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *            the minimum size of the network buffers, they hold at least
+     *            two records. The buffers are taken from the BufferPool and
+     *            have to be given back with release().
+     */
+    public SSLEngineTransport(SocketChannel channel, SSLEngine engine,
+            int bufferSize) {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        this.bufferSize = Math.max(bufferSize,
+                2 * session.getPacketBufferSize());
+        netIn = BufferPool.getDefault().acquireHeap(this.bufferSize);
+        netIn.clear();
+        netOut = BufferPool.getDefault().acquireHeap(this.bufferSize);
+        netOut.clear();
+        appIn = BufferPool.getDefault().acquireHeap(
+                session.getApplicationBufferSize());
+        appIn.flip();
+    }
+
+    /**
+     * Sets the limiters of the bandwidth, they count the bytes on the wire.
+     * 
+     * @param downloadLimiter
+     *            the limiter of the received data, may be null
+     * @param uploadLimiter
+     *            the limiter of the sent data, may be null
+     */
+    public void setLimiters(RateLimiter downloadLimiter,
+            RateLimiter uploadLimiter) {
+        this.downloadLimiter = downloadLimiter;
+        this.uploadLimiter = uploadLimiter;
+    }
+
+    /**
+     * Does the TLS handshake, the call blocks until it is finished.
+     * 
+     * @throws IOException
+     *             will be thrown if the handshake failed or the connection was
+     *             closed during the handshake
+     */
+    public void handshake() throws IOException {
+        log.debug("Starting handshake");
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED
+                && status != HandshakeStatus.NOT_HANDSHAKING) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                // the records of one flight are send together, single small
+                // writes would be delayed by the Nagle algorithm
+                status = wrap(EMPTY).getHandshakeStatus();
+            } else {
+                flush();
+                SSLEngineResult result = unwrapToAppIn();
+                if (result == null)
+                    throw new EOFException(
+                            "Connection closed during TLS handshake");
+                status = result.getHandshakeStatus();
+            }
+        }
+        flush();
+        if (log.isDebugEnabled())
+            log.debug("Handshake finished: "
+                    + engine.getSession().getProtocol() + " "
+                    + engine.getSession().getCipherSuite());
+    }
+
+    /**
+     * Reads decrypted data. If there is room for a whole record in dst, the
+     * records are decrypted directly into it, otherwise they are copied.
+     * 
+     * @return the number of bytes read, -1 if the peer closed the connection
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        while (!appIn.hasRemaining()) {
+            if (inboundDone)
+                return -1;
+            int start = dst.position();
+            SSLEngineResult result = unwrap(dst);
+            if (result == null || result.getStatus() == Status.CLOSED) {
+                inboundDone = true;
+                continue;
+            }
+            afterOperation(result);
+            if (dst.position() > start) {
+                // decrypt the complete records that were received with the
+                // same read, as long as they fit
+                while (dst.hasRemaining() && netIn.position() > 0) {
+                    netIn.flip();
+                    try {
+                        result = engine.unwrap(netIn, dst);
+                    } finally {
+                        netIn.compact();
+                    }
+                    if (result.getStatus() == Status.CLOSED)
+                        inboundDone = true;
+                    if (result.getStatus() != Status.OK)
+                        break;
+                    afterOperation(result);
+                }
+                return dst.position() - start;
+            }
+            if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                result = unwrapToAppIn();
+                if (result == null || result.getStatus() == Status.CLOSED)
+                    inboundDone = true;
+                else
+                    afterOperation(result);
+            }
+        }
+        int amount = Math.min(dst.remaining(), appIn.remaining());
+        if (amount == appIn.remaining()) {
+            dst.put(appIn);
+        } else {
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + amount);
+            dst.put(appIn);
+            appIn.limit(limit);
+        }
+        return amount;
+    }
+
+    /**
+     * Encrypts and sends all remaining bytes of the given buffer. The buffer
+     * does not need to be backed by an array.
+     * 
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer src) throws IOException {
+        int byteCount = src.remaining();
+        while (src.hasRemaining()) {
+            // the records are collected in netOut, it is send when it is full
+            SSLEngineResult result = wrap(src);
+            if (result.getStatus() == Status.CLOSED)
+                throw new SSLException("TLS connection was closed");
+            afterOperation(result);
+        }
+        flush();
+        return byteCount;
+    }
+
+    /**
+     * Receives everything until the peer closes the connection and writes it
+     * into the file. The records are decrypted into a pooled buffer which is
+     * written with positional writes.
+     * 
+     * @param dst
+     *            the file to write to
+     * @param position
+     *            the position in the file for the first byte
+     * @return the number of bytes received
+     */
+    public long transferTo(FileChannel dst, long position) throws IOException {
+        ByteBuffer buffer = BufferPool.getDefault().acquireHeap(bufferSize);
+        long received = 0;
+        try {
+            while (read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    received += dst.write(buffer, position + received);
+                buffer.clear();
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+        return received;
+    }
+
+    /**
+     * Sends a part of a file. It is read into a pooled buffer which is
+     * encrypted from there.
+     * 
+     * @param src
+     *            the file to send
+     * @param position
+     *            the position of the first byte in the file
+     * @param count
+     *            the number of bytes to send
+     * @return the number of bytes sent, less than count if the file is
+     *         shorter
+     */
+    public long transferFrom(FileChannel src, long position, long count)
+            throws IOException {
+        ByteBuffer buffer = BufferPool.getDefault().acquireHeap(bufferSize);
+        long sent = 0;
+        try {
+            while (sent < count) {
+                buffer.clear();
+                if (count - sent < buffer.remaining())
+                    buffer.limit((int) (count - sent));
+                int amount = src.read(buffer, position + sent);
+                if (amount <= 0)
+                    break;
+                buffer.flip();
+                sent += write(buffer);
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+        }
+        return sent;
+    }
+
+    /**
+     * Closes the connection after sending close_notify. Records that were
+     * received but not read are consumed before the socket is closed, so the
+     * close does not reset the connection while the peer is still reading.
+     * An upload never reads, but the server may have sent session tickets
+     * that are needed to resume the session for the next data connection.
+     * It must be called by the thread using the connection, use abort() from
+     * other threads.
+     */
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen() && netOut != null) {
+                engine.closeOutbound();
+                while (!engine.isOutboundDone()) {
+                    if (wrap(EMPTY).bytesProduced() == 0)
+                        break;
+                }
+                flush();
+                channel.socket().shutdownOutput();
+                channel.configureBlocking(false);
+                while (channel.read(netIn) > 0 || netIn.position() > 0) {
+                    netIn.flip();
+                    appIn.clear();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (result.getStatus() != Status.OK
+                            || result.bytesConsumed() == 0)
+                        break;
+                    runTasks();
+                }
+            }
+        } catch (IOException ioe) {
+            log.debug("Error during TLS shutdown", ioe);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the connection immediately, it can be called from another
+     * thread to stop a running read or write.
+     */
+    public void abort() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Gives the buffers back to the BufferPool, see SocketProvider.release().
+     */
+    public void release() {
+        BufferPool.getDefault().release(netIn);
+        BufferPool.getDefault().release(netOut);
+        BufferPool.getDefault().release(appIn);
+        netIn = netOut = appIn = null;
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    private void afterOperation(SSLEngineResult result) throws IOException {
+        HandshakeStatus status = result.getHandshakeStatus();
+        while (true) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                runTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                status = wrap(EMPTY).getHandshakeStatus();
+                flush();
+            } else {
+                // NEED_UNWRAP is satisfied by the next read
+                return;
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null)
+            task.run();
+    }
+
+    /**
+     * Wraps the next record into netOut, it is send when it is full. The
+     * caller has to flush() at the end.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() != Status.BUFFER_OVERFLOW)
+                return result;
+            if (netOut.position() > 0) {
+                flush();
+            } else {
+                ByteBuffer larger = BufferPool.getDefault().acquireHeap(
+                        Math.max(netOut.capacity() * 2, engine.getSession()
+                                .getPacketBufferSize()));
+                larger.clear();
+                BufferPool.getDefault().release(netOut);
+                netOut = larger;
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        netOut.flip();
+        int limit = netOut.limit();
+        while (netOut.hasRemaining()) {
+            int amount = RateLimiter.chunkSize(uploadLimiter, netOut
+                    .remaining());
+            netOut.limit(netOut.position() + amount);
+            RateLimiter.acquire(uploadLimiter, amount);
+            while (netOut.hasRemaining())
+                channel.write(netOut);
+            netOut.limit(limit);
+        }
+        netOut.clear();
+    }
+
+    /**
+     * Reads from the channel into netIn, not more than the download limiter
+     * allows at once.
+     * 
+     * @return the number of bytes read, -1 at the end of the stream
+     */
+    private int fill() throws IOException {
+        int limit = netIn.limit();
+        netIn.limit(netIn.position()
+                + RateLimiter.chunkSize(downloadLimiter, netIn.remaining()));
+        int amount;
+        try {
+            amount = channel.read(netIn);
+        } finally {
+            netIn.limit(limit);
+        }
+        if (amount > 0)
+            RateLimiter.acquire(downloadLimiter, amount);
+        return amount;
+    }
+
+    /**
+     * Unwraps the next record into the given buffer, reading from the channel
+     * until a complete record was received.
+     * 
+     * @param target
+     *            the buffer for the decrypted data (write mode)
+     * @return the result, BUFFER_OVERFLOW if the record does not fit into
+     *         target, or null if the channel reached the end of stream
+     */
+    private SSLEngineResult unwrap(ByteBuffer target) throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, target);
+            } finally {
+                netIn.compact();
+            }
+            if (result.getStatus() != Status.BUFFER_UNDERFLOW)
+                return result;
+            if (!netIn.hasRemaining()) {
+                ByteBuffer larger = BufferPool.getDefault().acquireHeap(
+                        Math.max(netIn.capacity() * 2, engine.getSession()
+                                .getPacketBufferSize()));
+                larger.clear();
+                netIn.flip();
+                larger.put(netIn);
+                BufferPool.getDefault().release(netIn);
+                netIn = larger;
+            }
+            if (fill() < 0)
+                return null;
+        }
+    }
+
+    /**
+     * Unwraps the next record into appIn, it is replaced by a larger buffer
+     * if the record does not fit.
+     */
+    private SSLEngineResult unwrapToAppIn() throws IOException {
+        while (true) {
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = unwrap(appIn);
+            } finally {
+                appIn.flip();
+            }
+            if (result == null
+                    || result.getStatus() != Status.BUFFER_OVERFLOW
+                    || appIn.hasRemaining())
+                return result;
+            ByteBuffer larger = BufferPool.getDefault().acquireHeap(
+                    Math.max(appIn.capacity() * 2, engine.getSession()
+                            .getApplicationBufferSize()));
+            larger.flip();
+            BufferPool.getDefault().release(appIn);
+            appIn = larger;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -46,33 +47,69 @@ public class SSLSupport {
     private static final Logger log = Logger.getLogger(SSLSupport.class
             .getName());
 
+    // milliseconds close() waits for the server to close a data connection
+    private static final int CLOSE_TIMEOUT = 1000;
+
     private SSLContext context;
 
     private OutputStream out = null;
 
     private InputStream in = null;
 
-    private byte[] readArray = new byte[16384];
+    private byte[] readArray = null;
+
+    private int bufferSize = SocketProvider.DEFAULT_BUFFER_SIZE;
 
     private boolean controllConnection;
 
-    private int maxDownload, maxUpload;
+    private RateLimiter downloadLimiter, uploadLimiter;
 
     private TrustManager[] trustManagers = null;
     private KeyManager[] keyManagers = null;
+
+    private String peerHost = null;
+
+    private int peerPort = -1;
     
     public SSLSupport(Socket socket, int mode, boolean controllConnection,
             int maxDownload, int maxUpload) {
+        this(socket, mode, controllConnection, SocketProvider
+                .limiter(maxDownload), SocketProvider.limiter(maxUpload));
+    }
+
+    /**
+     * @param downloadLimiter
+     *            the limiter of the received data, null if it is unlimited
+     * @param uploadLimiter
+     *            the limiter of the sent data, null if it is unlimited
+     */
+    public SSLSupport(Socket socket, int mode, boolean controllConnection,
+            RateLimiter downloadLimiter, RateLimiter uploadLimiter) {
         setMode(mode);
         setSocket(socket);
         setControllConnection(controllConnection);
-        this.maxDownload = maxDownload;
-        this.maxUpload = maxUpload;
+        this.downloadLimiter = downloadLimiter;
+        this.uploadLimiter = uploadLimiter;
     }
 
-    public void initEngineAndBuffers() throws NoSuchAlgorithmException,
-            KeyStoreException, KeyManagementException, SSLException,
-            IOException {
+    /**
+     * Creates a SSLContext for the given connection type. The context should
+     * be shared by the control and the data connections of a FTPConnection,
+     * so the data connections can resume the TLS session of the control
+     * connection.
+     * 
+     * @param mode
+     *            the connection type, see the constants of FTPConnection
+     * @param trustManagers
+     *            the trust managers, if there are none every certificate is
+     *            accepted (EasyX509TrustManager)
+     * @param keyManagers
+     *            the key managers for client authentication, may be null
+     */
+    public static SSLContext createContext(int mode,
+            TrustManager[] trustManagers, KeyManager[] keyManagers)
+            throws GeneralSecurityException {
+        SSLContext context;
         if (mode == FTPConnection.AUTH_SSL_FTP_CONNECTION
                 || mode == FTPConnection.IMPLICIT_SSL_FTP_CONNECTION)
             context = SSLContext.getInstance("SSL");
@@ -82,23 +119,42 @@ public class SSLSupport {
             trustManagers = new TrustManager[] { new EasyX509TrustManager(
                 null) };
         context.init(keyManagers, trustManagers, null);
-        SSLSocketFactory sslFact = context.getSocketFactory();
-        sslSocket = (SSLSocket) sslFact.createSocket(socket, socket
-                .getInetAddress().getHostAddress(), socket.getPort(), true);
-        if (maxUpload == FTPConnection.MAX_UPLOAD_BANDWIDTH
-                || isControllConnection()) {
-            out = sslSocket.getOutputStream();
-        } else {
-            out = new BandwidthControlledOutputStream(sslSocket
-                    .getOutputStream(), maxUpload);
+        return context;
+    }
+
+    public void initEngineAndBuffers() throws NoSuchAlgorithmException,
+            KeyStoreException, KeyManagementException, SSLException,
+            IOException {
+        if (context == null) {
+            try {
+                context = createContext(mode, trustManagers, keyManagers);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw nsae;
+            } catch (KeyManagementException kme) {
+                throw kme;
+            } catch (GeneralSecurityException gse) {
+                throw new KeyManagementException(gse.getMessage());
+            }
         }
-        if (maxDownload == FTPConnection.MAX_DOWNLOAD_BANDWIDTH
-                || isControllConnection()) {
-            in = sslSocket.getInputStream();
-        } else {
-            in = new BandwidthControlledInputStream(sslSocket.getInputStream(),
-                    maxDownload);
+        if (peerHost == null) {
+            peerHost = socket.getInetAddress().getHostAddress();
+            peerPort = socket.getPort();
         }
+        SSLSocketFactory sslFact = context.getSocketFactory();
+        // bandwidth controlled connections are limited below the SSLSocket,
+        // so the records are counted as they are on the wire
+        Socket layered = socket;
+        if (!isControllConnection()
+                && (downloadLimiter != null || uploadLimiter != null))
+            layered = new BandwidthControlledSocket(socket, downloadLimiter,
+                    uploadLimiter);
+        // JSSE takes the port for the session lookup from the layered
+        // socket, so a data connection does not resume the session of the
+        // control connection here
+        sslSocket = (SSLSocket) sslFact.createSocket(layered, peerHost,
+                peerPort, true);
+        out = sslSocket.getOutputStream();
+        in = sslSocket.getInputStream();
         sslSocket.setEnableSessionCreation(true);
         sslSocket.setUseClientMode(true);
     }
@@ -125,32 +181,72 @@ public class SSLSupport {
     }
 
     public int write(ByteBuffer src) throws IOException {
-        int byteCount = src.remaining();
-        out.write(src.array(), 0, byteCount);
-        return byteCount;
+        return SocketProvider.writeTo(out, src, bufferSize);
     }
 
     public int read(ByteBuffer dst) throws IOException {
-        int byteCount = 0;
-        if (isControllConnection())
-            byteCount = in.read(readArray, 0, dst.remaining());
-        else
-            byteCount = in.read(readArray);
-        log.debug("Read -> " + byteCount + " byte");
+        if (readArray == null)
+            readArray = BufferPool.getDefault().acquireArray(bufferSize);
+        int byteCount = in.read(readArray, 0, Math.min(readArray.length, dst
+                .remaining()));
+        if (log.isDebugEnabled())
+            log.debug("Read -> " + byteCount + " byte");
         if (byteCount <= 0)
             return byteCount;
-        dst.put(readArray, dst.position(), byteCount);
+        dst.put(readArray, 0, byteCount);
+        return byteCount;
+    }
+
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        int byteCount = in.read(dst, offset, length);
+        if (log.isDebugEnabled())
+            log.debug("Read -> " + byteCount + " byte");
         return byteCount;
     }
 
+    /**
+     * Closes the connection. Data connections send close_notify and wait
+     * until the server closes its side: closing a socket with unread data
+     * (f.e. session tickets the server sent during an upload) resets the
+     * connection and the server may lose the end of the upload.
+     */
     public void close() {
         try {
-            socket.close();
+            if (sslSocket != null && !isControllConnection()
+                    && !socket.isClosed()) {
+                try {
+                    sslSocket.shutdownOutput();
+                } catch (IOException ioe) {
+                    log.debug("Error sending close_notify", ioe);
+                }
+                if (!socket.isOutputShutdown())
+                    socket.shutdownOutput();
+                socket.setSoTimeout(CLOSE_TIMEOUT);
+                InputStream raw = socket.getInputStream();
+                byte[] discard = new byte[1024];
+                while (raw.read(discard) != -1)
+                    ;
+            }
         } catch (IOException ioe) {
-            log.error(ioe, ioe);
+            log.debug("Error during TLS shutdown", ioe);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                log.error(ioe, ioe);
+            }
         }
     }
 
+    /**
+     * Gives the read buffer back to the BufferPool, see
+     * SocketProvider.release().
+     */
+    public void release() {
+        BufferPool.getDefault().release(readArray);
+        readArray = null;
+    }
+
     /**
      * @return Returns the controllConnection.
      */
@@ -179,4 +275,40 @@ public class SSLSupport {
     public void setTrustManagers(TrustManager[] trustManagers) {
         this.trustManagers = trustManagers;
     }
+
+    /**
+     * @param context
+     *            The context to set, if it is not set initEngineAndBuffers()
+     *            creates one with the trust and key managers.
+     */
+    public void setContext(SSLContext context) {
+        this.context = context;
+    }
+
+    /**
+     * @return Returns the size of the buffers used to read and write.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize
+     *            The size of the buffers used to read and write to set, at
+     *            least 1. It has to be set before the first read.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets the host and port given to the layered SSLSocket, the default is
+     * the address of the socket.
+     */
+    public void setPeer(String peerHost, int peerPort) {
+        this.peerHost = peerHost;
+        this.peerPort = peerPort;
+    }
 }
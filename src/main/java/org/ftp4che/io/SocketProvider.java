@@ -23,8 +23,12 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 
 import org.apache.log4j.Logger;
@@ -35,6 +39,8 @@ public class SocketProvider {
 
     private SSLSupport supporter;
 
+    private SSLEngineTransport transport;
+
     private int sslMode = FTPConnection.FTP_CONNECTION;
 
     private Socket socket = null;
@@ -48,16 +54,35 @@ public class SocketProvider {
 
     private InputStream in = null;
 
-    private byte[] readArray = new byte[16384];
+    private byte[] readArray = null;
+
+    private ReplyDecoder replyDecoder = null;
+
+    private static final int TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Default size of the buffers used to transfer data
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private boolean sslEngineEnabled = true;
 
-    int maxDownload, maxUpload;
+    // null if the direction is not bandwidth controlled. The limiters are
+    // asked for every chunk, so changes of their rates apply to running
+    // transfers.
+    RateLimiter downloadLimiter, uploadLimiter;
 
     public SocketProvider() {
         socket = new Socket();
     }
 
     public SocketProvider(boolean isControllConnection) throws IOException {
-        this();
+        // data connections are channel based, so plain transfers can use
+        // FileChannel.transferTo / transferFrom
+        socket = (isControllConnection ? new Socket() : SocketChannel.open()
+                .socket());
         setControllConnection(isControllConnection);
     }
 
@@ -75,32 +100,47 @@ public class SocketProvider {
 
     public SocketProvider(Socket socket, boolean isControllConnection,
             int maxDownload, int maxUpload) throws IOException {
+        this(socket, isControllConnection, limiter(maxDownload),
+                limiter(maxUpload));
+    }
+
+    /**
+     * @param downloadLimiter
+     *            the limiter of the received data, null if it is unlimited
+     * @param uploadLimiter
+     *            the limiter of the sent data, null if it is unlimited
+     */
+    public SocketProvider(Socket socket, boolean isControllConnection,
+            RateLimiter downloadLimiter, RateLimiter uploadLimiter)
+            throws IOException {
         setControllConnection(isControllConnection);
-        this.maxDownload = maxDownload;
-        this.maxUpload = maxUpload;
+        this.downloadLimiter = downloadLimiter;
+        this.uploadLimiter = uploadLimiter;
         this.socket = socket;
         initStreams();
     }
 
+    /**
+     * @return a new limiter for the bandwidth or null if it is
+     *         MAX_DOWNLOAD_BANDWIDTH / MAX_UPLOAD_BANDWIDTH
+     */
+    static RateLimiter limiter(int bandwidth) {
+        if (bandwidth == FTPConnection.MAX_DOWNLOAD_BANDWIDTH
+                || bandwidth == FTPConnection.MAX_UPLOAD_BANDWIDTH)
+            return null;
+        return new RateLimiter(bandwidth);
+    }
+
     private void initStreams() throws IOException {
-        if (out == null) {
-            if (maxUpload == FTPConnection.MAX_UPLOAD_BANDWIDTH
-                    || isControllConnection()) {
-                out = socket.getOutputStream();
-            } else {
-                out = new BandwidthControlledOutputStream(socket
-                        .getOutputStream(), maxUpload);
-            }
-        }
-        if (in == null) {
-            if (maxDownload == FTPConnection.MAX_DOWNLOAD_BANDWIDTH
-                    || isControllConnection()) {
-                in = socket.getInputStream();
-            } else {
-                in = new BandwidthControlledInputStream(
-                        socket.getInputStream(), maxDownload);
-            }
-        }
+        // the bandwidth of data connections is limited where the bytes are
+        // read from and written to the socket (or the TLS transport), so
+        // the streams are the ones of the socket
+        if (isControllConnection())
+            downloadLimiter = uploadLimiter = null;
+        if (out == null)
+            out = socket.getOutputStream();
+        if (in == null)
+            in = socket.getInputStream();
     }
 
     // public void connect( SocketAddress remote ) throws IOException {
@@ -110,17 +150,47 @@ public class SocketProvider {
 
     public void connect(SocketAddress remote, Proxy proxy, int maxDownload,
             int maxUpload) throws IOException {
+        connect(remote, proxy, maxDownload, maxUpload, 0);
+    }
+
+    /**
+     * @param timeout
+     *            the connect timeout in milliseconds, 0 waits without a
+     *            timeout. It is not used for connections over a proxy.
+     */
+    public void connect(SocketAddress remote, Proxy proxy, int maxDownload,
+            int maxUpload, int timeout) throws IOException {
+        connect(remote, proxy, limiter(maxDownload), limiter(maxUpload),
+                timeout);
+    }
+
+    /**
+     * @param downloadLimiter
+     *            the limiter of the received data, null if it is unlimited
+     * @param uploadLimiter
+     *            the limiter of the sent data, null if it is unlimited
+     * @param timeout
+     *            the connect timeout in milliseconds, 0 waits without a
+     *            timeout. It is not used for connections over a proxy.
+     */
+    public void connect(SocketAddress remote, Proxy proxy,
+            RateLimiter downloadLimiter, RateLimiter uploadLimiter,
+            int timeout) throws IOException {
 
         if (proxy == null) {
-            socket.connect(remote);
+            socket.connect(remote, timeout);
         } else {
             InetSocketAddress isa = (InetSocketAddress) remote;
-            socket = proxy.connect(isa.getAddress().getHostAddress(), isa
-                    .getPort());
+            Socket proxySocket = proxy.connect(isa.getAddress()
+                    .getHostAddress(), isa.getPort());
+            // the unconnected socket (and its channel) is replaced by the one
+            // of the proxy
+            socket.close();
+            socket = proxySocket;
         }
 
-        this.maxDownload = maxDownload;
-        this.maxUpload = maxUpload;
+        this.downloadLimiter = downloadLimiter;
+        this.uploadLimiter = uploadLimiter;
         initStreams();
     }
 
@@ -141,39 +211,295 @@ public class SocketProvider {
     public void close() throws IOException {
 
         if (needsCrypt()) {
-            if (supporter != null)
+            if (transport != null)
+                transport.close();
+            else if (supporter != null)
                 supporter.close();
         }
         socket.close();
     }
 
+    /**
+     * Closes the connection immediately without a TLS shutdown. In contrast
+     * to close() it can be called from another thread to stop a transfer.
+     */
+    public void abort() throws IOException {
+        socket.close();
+    }
+
     public int write(ByteBuffer src) throws IOException {
         if (needsCrypt()) {
+            if (transport != null)
+                return transport.write(src);
             return supporter.write(src);
             // throw new IOException("SSL NOT IMPLEMENTED YET");
         }
         int byteCount = src.remaining();
-        out.write(src.array(), 0, byteCount);
+        SocketChannel channel = supportsTransferTo() ? socket.getChannel()
+                : null;
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                int amount = RateLimiter.chunkSize(uploadLimiter, src
+                        .remaining());
+                src.limit(src.position() + amount);
+                RateLimiter.acquire(uploadLimiter, amount);
+                if (channel != null) {
+                    while (src.hasRemaining())
+                        channel.write(src);
+                } else {
+                    writeTo(out, src, bufferSize);
+                }
+                src.limit(limit);
+            }
+        } finally {
+            src.limit(limit);
+        }
+        return byteCount;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer to the stream. Buffers without
+     * an array (direct buffers) are copied through a pooled array.
+     * 
+     * @return the number of bytes written
+     */
+    static int writeTo(OutputStream out, ByteBuffer src, int chunkSize)
+            throws IOException {
+        int byteCount = src.remaining();
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(),
+                    byteCount);
+            src.position(src.limit());
+            return byteCount;
+        }
+        byte[] array = BufferPool.getDefault().acquireArray(
+                Math.min(byteCount, chunkSize));
+        try {
+            while (src.hasRemaining()) {
+                int amount = Math.min(src.remaining(), array.length);
+                src.get(array, 0, amount);
+                out.write(array, 0, amount);
+            }
+        } finally {
+            BufferPool.getDefault().release(array);
+        }
         return byteCount;
     }
 
     public int read(ByteBuffer dst) throws IOException {
         if (needsCrypt()) {
+            if (transport != null)
+                return transport.read(dst);
             return supporter.read(dst);
         }
-        int byteCount = 0;
-        if (isControllConnection()) {
-            byteCount = in.read(readArray, 0, dst.remaining());
-        } else {
-            byteCount = in.read(readArray);
+        if (supportsTransferFrom()) {
+            // read directly into the buffer without the copy over readArray
+            int limit = dst.limit();
+            dst.limit(dst.position()
+                    + RateLimiter.chunkSize(downloadLimiter, dst.remaining()));
+            int byteCount;
+            try {
+                byteCount = socket.getChannel().read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (byteCount > 0)
+                RateLimiter.acquire(downloadLimiter, byteCount);
+            if (log.isDebugEnabled())
+                log.debug("Read -> " + byteCount + " byte");
+            return byteCount;
         }
-        log.debug("Read -> " + byteCount + " byte");
+        if (readArray == null)
+            readArray = BufferPool.getDefault().acquireArray(bufferSize);
+        int byteCount = in.read(readArray, 0, RateLimiter.chunkSize(
+                downloadLimiter, Math.min(readArray.length, dst.remaining())));
+        if (log.isDebugEnabled())
+            log.debug("Read -> " + byteCount + " byte");
         if (byteCount <= 0)
             return byteCount;
-        dst.put(readArray, dst.position(), byteCount);
+        RateLimiter.acquire(downloadLimiter, byteCount);
+        dst.put(readArray, 0, byteCount);
         return byteCount;
     }
 
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (needsCrypt()) {
+            if (transport != null)
+                return transport.read(ByteBuffer.wrap(dst, offset, length));
+            return supporter.read(dst, offset, length);
+        }
+        int byteCount = in.read(dst, offset, RateLimiter.chunkSize(
+                downloadLimiter, length));
+        if (log.isDebugEnabled())
+            log.debug("Read -> " + byteCount + " byte");
+        if (byteCount > 0)
+            RateLimiter.acquire(downloadLimiter, byteCount);
+        return byteCount;
+    }
+
+    /**
+     * @return Returns true if this is a data connection with a SocketChannel,
+     *         so transferFrom(FileChannel, long, long) can be used. Encrypted
+     *         connections need the SSLEngine transport.
+     */
+    public boolean supportsTransferTo() {
+        if (transport != null)
+            return true;
+        return !isControllConnection() && !needsCrypt()
+                && socket.getChannel() != null;
+    }
+
+    /**
+     * @return Returns true if this is a data connection with a SocketChannel,
+     *         so transferTo(FileChannel, long) can be used. Encrypted
+     *         connections need the SSLEngine transport.
+     */
+    public boolean supportsTransferFrom() {
+        if (transport != null)
+            return true;
+        return !isControllConnection() && !needsCrypt()
+                && socket.getChannel() != null;
+    }
+
+    /**
+     * Receives everything until the server closes the connection and writes
+     * it into the file without copying it through the java heap
+     * (FileChannel.transferFrom). Encrypted connections decrypt into a
+     * pooled buffer instead of copying the data through the stream of a
+     * SSLSocket. Only possible if supportsTransferFrom() returns true.
+     * 
+     * @param dst
+     *            the file to write to
+     * @param position
+     *            the position in the file for the first byte
+     * @return the number of bytes received
+     * @throws IOException
+     *             will be thrown if there was a problem reading from the socket
+     *             or writing the file
+     */
+    public long transferTo(FileChannel dst, long position) throws IOException {
+        if (transport != null)
+            return transport.transferTo(dst, position);
+        SocketChannel channel = socket.getChannel();
+        long received = 0;
+        long amount;
+        // transferFrom returns 0 as soon as the blocking channel reached the
+        // end of the stream. Bandwidth controlled transfers are done in
+        // chunks the limiter allows.
+        while ((amount = dst.transferFrom(channel, position + received,
+                RateLimiter.chunkSize(downloadLimiter, TRANSFER_CHUNK_SIZE))) > 0) {
+            RateLimiter.acquire(downloadLimiter, amount);
+            received += amount;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Received -> " + received + " byte (transferFrom)");
+        return received;
+    }
+
+    /**
+     * Sends a part of a file without copying it through the java heap
+     * (FileChannel.transferTo, sendfile on most systems). Encrypted
+     * connections encrypt from a pooled buffer. Only possible if
+     * supportsTransferTo() returns true.
+     * 
+     * @param src
+     *            the file to send
+     * @param position
+     *            the position of the first byte in the file
+     * @param count
+     *            the number of bytes to send
+     * @return the number of bytes sent, less than count if the file is
+     *         shorter
+     * @throws IOException
+     *             will be thrown if there was a problem reading the file or
+     *             writing to the socket
+     */
+    public long transferFrom(FileChannel src, long position, long count)
+            throws IOException {
+        if (transport != null)
+            return transport.transferFrom(src, position, count);
+        SocketChannel channel = socket.getChannel();
+        long sent = 0;
+        while (sent < count) {
+            long amount = src.transferTo(position + sent, Math.min(count
+                    - sent, RateLimiter.chunkSize(uploadLimiter,
+                    Integer.MAX_VALUE)), channel);
+            if (amount <= 0)
+                break;
+            RateLimiter.acquire(uploadLimiter, amount);
+            sent += amount;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Sent -> " + sent + " byte (transferTo)");
+        return sent;
+    }
+
+    /**
+     * @return Returns the decoder for replies received on this connection.
+     *         It keeps bytes received after a reply for the next one.
+     */
+    public ReplyDecoder getReplyDecoder() {
+        if (replyDecoder == null)
+            replyDecoder = new ReplyDecoder();
+        return replyDecoder;
+    }
+
+    /**
+     * @return Returns the size of the buffers used to transfer data on this
+     *         connection.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize
+     *            The bufferSize to set, at least 1.
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return Returns true if encrypted data connections use the SSLEngine
+     *         transport.
+     */
+    public boolean isSSLEngineEnabled() {
+        return sslEngineEnabled;
+    }
+
+    /**
+     * @param sslEngineEnabled
+     *            Set to false to use a SSLSocket layered over the socket for
+     *            encrypted data connections, too. It has to be set before
+     *            negotiate().
+     */
+    public void setSSLEngineEnabled(boolean sslEngineEnabled) {
+        this.sslEngineEnabled = sslEngineEnabled;
+    }
+
+    /**
+     * Gives the buffers of this connection back to the BufferPool. It has to
+     * be called after close() by the thread that used the connection, when
+     * no other thread can still read from it (close() can be called from
+     * another thread to stop a transfer).
+     */
+    public void release() {
+        BufferPool.getDefault().release(readArray);
+        readArray = null;
+        if (replyDecoder != null) {
+            replyDecoder.release();
+            replyDecoder = null;
+        }
+        if (supporter != null)
+            supporter.release();
+        if (transport != null)
+            transport.release();
+    }
+
     public String toString() {
         return socket.getInetAddress().getHostAddress() + ":"
                 + socket.getPort();
@@ -212,7 +538,7 @@ public class SocketProvider {
     public void negotiate(TrustManager[] trustManagers,KeyManager[] keyManagers) {
         try {
             supporter = new SSLSupport(socket, getSSLMode(),
-                    isControllConnection(), maxDownload, maxUpload);
+                    isControllConnection(), downloadLimiter, uploadLimiter);
             supporter.setTrustManagers(trustManagers);
             supporter.setKeyManagers(keyManagers);
             supporter.initEngineAndBuffers();
@@ -223,4 +549,60 @@ public class SocketProvider {
         }
     }
 
+    /**
+     * Starts TLS on this connection. Data connections with a SocketChannel
+     * use a SSLEngine on the channel, all other connections a SSLSocket
+     * layered over the socket. Only the SSLEngine resumes the session of the
+     * control connection. The layered SSLSocket gets the same peerHost and
+     * peerPort, but JSSE looks up the cached session with the port of the
+     * underlying socket (SSLSocket.getPort()), which is the port of the data
+     * connection, so it always does a full handshake.
+     * 
+     * @param context
+     *            the SSLContext, it should be the one of the control
+     *            connection
+     * @param peerHost
+     *            the host the TLS session is cached for
+     * @param peerPort
+     *            the port the TLS session is cached for. Data connections
+     *            with a SSLEngine have to use host and port of the control
+     *            connection to resume its session, a layered SSLSocket
+     *            ignores it for the lookup.
+     * @throws IOException
+     *             will be thrown if the handshake failed
+     */
+    public void negotiate(SSLContext context, String peerHost, int peerPort)
+            throws IOException {
+        if (sslEngineEnabled && !isControllConnection()
+                && socket.getChannel() != null) {
+            SSLEngine engine = context.createSSLEngine(peerHost, peerPort);
+            engine.setUseClientMode(true);
+            engine.setEnableSessionCreation(true);
+            // the transport writes whole records and handshake flights, the
+            // Nagle algorithm would only delay the end of the handshake
+            socket.setTcpNoDelay(true);
+            transport = new SSLEngineTransport(socket.getChannel(), engine,
+                    bufferSize);
+            transport.setLimiters(downloadLimiter, uploadLimiter);
+            transport.handshake();
+            return;
+        }
+        supporter = new SSLSupport(socket, getSSLMode(),
+                isControllConnection(), downloadLimiter, uploadLimiter);
+        supporter.setContext(context);
+        supporter.setPeer(peerHost, peerPort);
+        supporter.setBufferSize(bufferSize);
+        try {
+            supporter.initEngineAndBuffers();
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Exception e) {
+            IOException ioe = new IOException("TLS initialization failed: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        supporter.handshake();
+    }
+
 }
@@ -0,0 +1,38 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Callback for a channel registered at an EventLoop. All methods are called
+ * on the thread of the event loop.
+ */
+interface ChannelHandler {
+
+    /**
+     * Called when the channel is ready for one of the operations it is
+     * registered for.
+     */
+    public void handle(SelectionKey key) throws IOException;
+
+    /**
+     * Called when handle() threw an exception or the event loop was closed.
+     */
+    public void failed(Throwable cause);
+}
@@ -0,0 +1,205 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A thread with a Selector that drives the channels of many sessions. Tasks
+ * given to execute() run on the thread of the loop, so the state of a session
+ * is only touched by one thread and needs no locking.
+ */
+class EventLoop implements Runnable {
+    private static final Logger log = Logger.getLogger(EventLoop.class
+            .getName());
+
+    private Selector selector;
+
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // only used by the thread of the loop
+    private PriorityQueue<ScheduledTask> timers =
+            new PriorityQueue<ScheduledTask>();
+
+    private Thread thread;
+
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the thread of this loop. Tasks given before the loop
+     * was closed are still run while it shuts down.
+     * 
+     * @throws RejectedExecutionException
+     *             if the loop is closed
+     */
+    void execute(Runnable task) {
+        synchronized (this) {
+            if (!running)
+                throw new RejectedExecutionException("The event loop "
+                        + thread.getName() + " is closed");
+            tasks.add(task);
+        }
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the thread of this loop after the delay, has to be
+     * called on the thread of this loop. Tasks that are due when the loop is
+     * closed are dropped.
+     */
+    void schedule(Runnable task, long delay) {
+        timers.add(new ScheduledTask(task, System.currentTimeMillis()
+                + Math.max(delay, 0)));
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers a channel, has to be called on the thread of this loop.
+     */
+    SelectionKey register(SelectableChannel channel, int ops,
+            ChannelHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    void close() {
+        synchronized (this) {
+            running = false;
+        }
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            long wait = 0;
+            while (running) {
+                selector.select(wait);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ChannelHandler handler = (ChannelHandler) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        handler.handle(key);
+                    } catch (Exception e) {
+                        handler.failed(e);
+                    }
+                }
+                wait = runTimers();
+            }
+        } catch (IOException ioe) {
+            log.error("Event loop " + thread.getName() + " failed", ioe);
+        } catch (ClosedSelectorException cse) {
+            // closed
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException re) {
+                log.error("Task failed in event loop " + thread.getName(), re);
+            }
+        }
+    }
+
+    /**
+     * Runs the due timers.
+     * 
+     * @return the milliseconds until the next timer is due, 0 if there is
+     *         none
+     */
+    private long runTimers() {
+        long now = System.currentTimeMillis();
+        ScheduledTask timer;
+        while ((timer = timers.peek()) != null && timer.time <= now) {
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException re) {
+                log.error("Timer failed in event loop " + thread.getName(), re);
+            }
+        }
+        if (timer == null)
+            return 0;
+        return Math.max(timer.time - now, 1);
+    }
+
+    private void shutdown() {
+        // no task is added after this, the queued ones are run
+        synchronized (this) {
+            running = false;
+        }
+        runTasks();
+        IOException closed = new IOException("The event loop was closed");
+        for (Iterator<SelectionKey> it = selector.keys().iterator(); it
+                .hasNext();) {
+            SelectionKey key = it.next();
+            ((ChannelHandler) key.attachment()).failed(closed);
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+            log.warn("Error closing selector", ioe);
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        Runnable task;
+
+        long time;
+
+        ScheduledTask(Runnable task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+
+        public int compareTo(ScheduledTask other) {
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+    }
+}
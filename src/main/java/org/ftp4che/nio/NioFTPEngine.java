@@ -0,0 +1,164 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ftp4che.exception.ConfigurationException;
+
+/**
+ * A non blocking FTP engine. It owns a small pool of event loop threads, each
+ * with its own Selector, and creates NioFTPSessions that are spread over the
+ * loops. A session never blocks a thread while it waits for the server, so
+ * one engine can drive thousands of sessions.
+ * 
+ * Example:
+ * 
+ * <pre>
+ * NioFTPEngine engine = new NioFTPEngine(2);
+ * NioFTPSession session = engine.connect(properties).get();
+ * session.getDirectoryListing(&quot;/pub&quot;).thenAccept(...);
+ * </pre>
+ */
+public class NioFTPEngine {
+
+    private EventLoop[] loops;
+
+    private AtomicInteger next = new AtomicInteger();
+
+    private volatile int timeout = 10000;
+
+    /**
+     * Creates an engine with one event loop per available processor.
+     */
+    public NioFTPEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            the number of event loop threads
+     */
+    public NioFTPEngine(int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException(
+                    "At least one thread is needed");
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new EventLoop("NioFTPEngine-" + i);
+    }
+
+    /**
+     * @return Returns the milliseconds an operation of a new session waits
+     *         for the server.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout
+     *            The milliseconds an operation of a new session waits for
+     *            the server before the session is closed, 0 to wait forever.
+     *            Default is 10000.
+     */
+    public void setTimeout(int timeout) {
+        if (timeout < 0)
+            throw new IllegalArgumentException(
+                    "The timeout must not be negative");
+        this.timeout = timeout;
+    }
+
+    /**
+     * Opens a session with the settings of the given properties (the same
+     * properties FTPConnectionFactory.getInstance(Properties) uses). Only
+     * connection.type FTP_CONNECTION and passive mode are supported.
+     * connection.timeout overrides the timeout of the engine.
+     * 
+     * @return CompletableFuture completed with the logged in NioFTPSession
+     * @throws ConfigurationException
+     *             will be thrown if a parameter is missing or not supported
+     */
+    public CompletableFuture<NioFTPSession> connect(Properties pt)
+            throws ConfigurationException {
+        String host = pt.getProperty("connection.host");
+        if (host == null)
+            throw new ConfigurationException("connection.host is missing");
+        int port = 21;
+        if (pt.getProperty("connection.port") != null)
+            port = Integer.parseInt(pt.getProperty("connection.port").trim());
+        String type = pt.getProperty("connection.type");
+        if (type != null && !type.equalsIgnoreCase("FTP_CONNECTION"))
+            throw new ConfigurationException(
+                    "Only FTP_CONNECTION is supported by the NioFTPEngine");
+        String passive = pt.getProperty("connection.passive");
+        if (passive != null && !passive.equalsIgnoreCase("true"))
+            throw new ConfigurationException(
+                    "Only passive mode is supported by the NioFTPEngine");
+        int sessionTimeout = timeout;
+        if (pt.getProperty("connection.timeout") != null)
+            sessionTimeout = Integer.parseInt(pt.getProperty(
+                    "connection.timeout").trim());
+        if (sessionTimeout < 0)
+            throw new ConfigurationException(
+                    "connection.timeout must not be negative");
+        return connect(new InetSocketAddress(host, port), pt
+                .getProperty("user.login"), pt.getProperty("user.password"),
+                pt.getProperty("user.account"), sessionTimeout);
+    }
+
+    /**
+     * Opens a session with the timeout of the engine and logs in.
+     * 
+     * @return CompletableFuture completed with the logged in NioFTPSession
+     */
+    public CompletableFuture<NioFTPSession> connect(
+            InetSocketAddress address, String user, String password,
+            String account) {
+        return connect(address, user, password, account, timeout);
+    }
+
+    /**
+     * Opens a session and logs in.
+     * 
+     * @param timeout
+     *            the milliseconds an operation waits for the server, 0 to
+     *            wait forever
+     * @return CompletableFuture completed with the logged in NioFTPSession
+     */
+    public CompletableFuture<NioFTPSession> connect(
+            InetSocketAddress address, String user, String password,
+            String account, int timeout) {
+        EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE)
+                % loops.length];
+        return new NioFTPSession(loop, address, user, password, account,
+                timeout).connect();
+    }
+
+    /**
+     * Stops the event loops. All open sessions are closed, their pending
+     * operations fail with an IOException.
+     */
+    public void close() {
+        for (int i = 0; i < loops.length; i++)
+            loops[i].close();
+    }
+}
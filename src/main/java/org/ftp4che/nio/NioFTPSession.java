@@ -0,0 +1,941 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.nio;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.commands.Command;
+import org.ftp4che.commands.ListCommand;
+import org.ftp4che.io.BufferPool;
+import org.ftp4che.io.ReplyDecoder;
+import org.ftp4che.reply.Reply;
+import org.ftp4che.reply.ReplyCode;
+import org.ftp4che.util.ReplyFormatter;
+import org.ftp4che.util.ftpfile.FTPFile;
+import org.ftp4che.util.ftpfile.FTPFileFactory;
+
+/**
+ * A FTP session driven by a NioFTPEngine. The control connection and the data
+ * connections are non blocking channels handled by one event loop thread, so
+ * thousands of sessions need only a few threads.
+ * 
+ * Every operation returns a CompletableFuture and is queued; the operations
+ * of one session are executed one after the other like on a FTPConnection.
+ * Operations that fail complete the future exceptionally with the same
+ * exceptions FTPConnection throws (IOException, FtpIOException,
+ * FtpWorkflowException). Only plain FTP in passive mode is supported.
+ * 
+ * If the server neither replies nor transfers data for the timeout of the
+ * session while an operation runs, the operation fails with a
+ * SocketTimeoutException and the session is closed.
+ */
+public class NioFTPSession implements ChannelHandler {
+    private static final Logger log = Logger.getLogger(NioFTPSession.class
+            .getName());
+
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private EventLoop loop;
+
+    private InetSocketAddress address;
+
+    private String user;
+
+    private String password;
+
+    private String account;
+
+    private SocketChannel control;
+
+    private SelectionKey controlKey;
+
+    private ReplyDecoder decoder = new ReplyDecoder();
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+    private LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    private LinkedList<Operation<?>> operations = new LinkedList<Operation<?>>();
+
+    private Operation<?> current = null;
+
+    private FTPFileFactory factory = new FTPFileFactory("UNKNOWN");
+
+    private volatile boolean connected = false;
+
+    private boolean closed = false;
+
+    private int timeout;
+
+    // the time the server was heard of last while an operation runs
+    private long lastActivity = 0;
+
+    private boolean watching = false;
+
+    NioFTPSession(EventLoop loop, InetSocketAddress address, String user,
+            String password, String account, int timeout) {
+        this.loop = loop;
+        this.address = address;
+        this.user = user;
+        this.password = password;
+        this.account = account;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Opens the control connection and logs in.
+     * 
+     * @return CompletableFuture completed with this session
+     */
+    CompletableFuture<NioFTPSession> connect() {
+        final LoginOperation login = new LoginOperation();
+        execute(login, new Runnable() {
+            public void run() {
+                try {
+                    control = SocketChannel.open();
+                    control.configureBlocking(false);
+                    control.socket().setKeepAlive(true);
+                    control.socket().setTcpNoDelay(true);
+                    boolean connected = control.connect(address);
+                    controlKey = loop.register(control,
+                            connected ? SelectionKey.OP_READ
+                                    : SelectionKey.OP_CONNECT,
+                            NioFTPSession.this);
+                    operations.add(login);
+                    startNext();
+                } catch (IOException ioe) {
+                    login.fail(ioe);
+                    close(ioe);
+                }
+            }
+        });
+        return login.future;
+    }
+
+    /**
+     * Sends a command and returns the first reply without validating it.
+     * 
+     * @return CompletableFuture completed with the Reply
+     */
+    public CompletableFuture<Reply> sendCommand(Command command) {
+        return submit(new ReplyOperation(command));
+    }
+
+    /**
+     * Sends a NOOP.
+     * 
+     * @return CompletableFuture completed with null
+     */
+    public CompletableFuture<Void> noOperation() {
+        return submit(new VoidOperation(new Command(Command.NOOP)));
+    }
+
+    /**
+     * @return CompletableFuture completed with null when the directory was
+     *         changed
+     */
+    public CompletableFuture<Void> changeDirectory(String directory) {
+        return submit(new VoidOperation(new Command(Command.CWD, directory)));
+    }
+
+    /**
+     * @return CompletableFuture completed with null when the directory was
+     *         changed
+     */
+    public CompletableFuture<Void> changeToParentDirectory() {
+        return submit(new VoidOperation(new Command(Command.CDUP)));
+    }
+
+    /**
+     * @return CompletableFuture completed with the working directory as
+     *         String
+     */
+    public CompletableFuture<String> getWorkDirectory() {
+        return submit(new CommandOperation<String>(new Command(Command.PWD),
+                true) {
+            String result(Reply reply) {
+                return ReplyFormatter.parsePWDReply(reply);
+            }
+        });
+    }
+
+    /**
+     * @return CompletableFuture completed with null when the directory was
+     *         created
+     */
+    public CompletableFuture<Void> makeDirectory(String pathname) {
+        return submit(new VoidOperation(new Command(Command.MKD, pathname)));
+    }
+
+    /**
+     * @return CompletableFuture completed with null when the directory was
+     *         removed
+     */
+    public CompletableFuture<Void> removeDirectory(String pathname) {
+        return submit(new VoidOperation(new Command(Command.RMD, pathname)));
+    }
+
+    /**
+     * @return CompletableFuture completed with null when the file was deleted
+     */
+    public CompletableFuture<Void> deleteFile(FTPFile file) {
+        return submit(new VoidOperation(new Command(Command.DELE, file
+                .toString())));
+    }
+
+    /**
+     * @return CompletableFuture completed with a List of FTPFile objects
+     */
+    public CompletableFuture<List<FTPFile>> getDirectoryListing(
+            String directory) {
+        return submit(new ListOperation(directory));
+    }
+
+    /**
+     * Downloads a file in binary mode.
+     * 
+     * @return CompletableFuture completed with the number of bytes received
+     */
+    public CompletableFuture<Long> downloadFile(FTPFile fromFile, FTPFile toFile) {
+        return submit(new DownloadOperation(fromFile, toFile));
+    }
+
+    /**
+     * Uploads a file in binary mode.
+     * 
+     * @return CompletableFuture completed with the number of bytes sent
+     */
+    public CompletableFuture<Long> uploadFile(FTPFile fromFile, FTPFile toFile) {
+        return submit(new UploadOperation(fromFile, toFile));
+    }
+
+    /**
+     * Sends QUIT and closes the session after all queued operations.
+     * 
+     * @return CompletableFuture completed with null when the session is
+     *         closed
+     */
+    public CompletableFuture<Void> disconnect() {
+        return submit(new CommandOperation<Void>(new Command(Command.QUIT),
+                false) {
+            Void result(Reply reply) {
+                return null;
+            }
+
+            void reply(Reply reply) {
+                complete(null);
+                close(new IOException("The session was closed"));
+            }
+        });
+    }
+
+    /**
+     * @return Returns true if the session is logged in and not closed.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return Returns the milliseconds an operation waits for the server, 0
+     *         if it waits forever.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return Returns the address of the server.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public String toString() {
+        return user + "@" + address;
+    }
+
+    private <T> CompletableFuture<T> submit(final Operation<T> operation) {
+        execute(operation, new Runnable() {
+            public void run() {
+                if (closed) {
+                    operation.fail(new IOException("The session is closed"));
+                    return;
+                }
+                operations.add(operation);
+                startNext();
+            }
+        });
+        return operation.future;
+    }
+
+    /**
+     * Runs the task of the operation on the event loop. If the engine was
+     * closed the operation fails at once.
+     */
+    private void execute(Operation<?> operation, Runnable task) {
+        try {
+            loop.execute(task);
+        } catch (RejectedExecutionException ree) {
+            operation.future.completeExceptionally(new IOException(
+                    "The engine was closed"));
+        }
+    }
+
+    private void startNext() {
+        if (current != null || closed || operations.isEmpty())
+            return;
+        current = operations.removeFirst();
+        touch();
+        watch();
+        try {
+            current.start();
+        } catch (Exception e) {
+            current.fail(e);
+        }
+    }
+
+    /**
+     * Notes that the server was heard of.
+     */
+    private void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts the timer that checks the running operation, there is at most
+     * one timer per session.
+     */
+    private void watch() {
+        if (timeout <= 0 || watching)
+            return;
+        watching = true;
+        loop.schedule(new Runnable() {
+            public void run() {
+                watching = false;
+                checkTimeout();
+            }
+        }, lastActivity + timeout - System.currentTimeMillis());
+    }
+
+    private void checkTimeout() {
+        if (closed || current == null)
+            return;
+        if (System.currentTimeMillis() - lastActivity < timeout) {
+            watch();
+            return;
+        }
+        close(new SocketTimeoutException("No reply from " + address
+                + " within " + timeout + " ms"));
+    }
+
+    private void send(Command command) throws IOException {
+        String line = command.toString();
+        if (log.isDebugEnabled())
+            log.debug("Sending command: "
+                    + line.substring(0, line.length() - 2));
+        writeQueue.add(ByteBuffer.wrap(line.getBytes(charset.name())));
+        if (control.isConnected())
+            flushWrites();
+    }
+
+    private void flushWrites() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.getFirst();
+            control.write(buffer);
+            if (buffer.hasRemaining()) {
+                controlKey.interestOps(SelectionKey.OP_READ
+                        | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.removeFirst();
+        }
+        controlKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            control.finishConnect();
+            flushWrites();
+            return;
+        }
+        if (key.isWritable())
+            flushWrites();
+        if (key.isReadable())
+            readReplies();
+    }
+
+    public void failed(Throwable cause) {
+        close(cause);
+    }
+
+    private void readReplies() throws IOException {
+        int amount;
+        while ((amount = control.read(readBuffer)) > 0) {
+            touch();
+            readBuffer.flip();
+            decoder.feed(readBuffer);
+            readBuffer.clear();
+        }
+        Reply reply;
+        while (!closed && (reply = decoder.poll()) != null) {
+            reply.dumpReply();
+            if (current == null) {
+                log.warn("Unexpected reply from " + this + ": "
+                        + reply.getLines());
+                continue;
+            }
+            Operation<?> operation = current;
+            try {
+                operation.reply(reply);
+            } catch (Exception e) {
+                operation.fail(e);
+            }
+        }
+        if (amount < 0)
+            close(new IOException("The connection was closed by the server"));
+    }
+
+    private void close(Throwable cause) {
+        if (closed)
+            return;
+        closed = true;
+        connected = false;
+        decoder.release();
+        if (controlKey != null)
+            controlKey.cancel();
+        try {
+            if (control != null)
+                control.close();
+        } catch (IOException ioe) {
+            log.debug("Error closing control connection", ioe);
+        }
+        List<Operation<?>> waiting = new ArrayList<Operation<?>>(operations);
+        operations.clear();
+        if (current != null)
+            current.fail(cause);
+        for (Iterator<Operation<?>> it = waiting.iterator(); it.hasNext();)
+            it.next().fail(cause);
+    }
+
+    /**
+     * A step of the session, it gets all replies until it is completed.
+     */
+    abstract class Operation<T> {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+
+        private boolean done = false;
+
+        abstract void start() throws IOException;
+
+        abstract void reply(Reply reply) throws Exception;
+
+        void cleanup() {
+        }
+
+        void complete(T value) {
+            if (done)
+                return;
+            done = true;
+            cleanup();
+            future.complete(value);
+            finish();
+        }
+
+        void fail(Throwable cause) {
+            if (done)
+                return;
+            done = true;
+            cleanup();
+            future.completeExceptionally(cause);
+            finish();
+        }
+
+        private void finish() {
+            if (current == this) {
+                current = null;
+                startNext();
+            }
+        }
+    }
+
+    abstract class CommandOperation<T> extends Operation<T> {
+        private Command command;
+
+        private boolean validate;
+
+        CommandOperation(Command command, boolean validate) {
+            this.command = command;
+            this.validate = validate;
+        }
+
+        void start() throws IOException {
+            send(command);
+        }
+
+        void reply(Reply reply) throws Exception {
+            if (validate) {
+                if (ReplyCode.isPositivePreliminaryReply(reply))
+                    return;
+                reply.validate();
+                complete(result(reply));
+            } else {
+                complete(result(reply));
+            }
+        }
+
+        abstract T result(Reply reply) throws Exception;
+    }
+
+    /**
+     * A command completed with its first reply, which is not validated.
+     */
+    class ReplyOperation extends CommandOperation<Reply> {
+        ReplyOperation(Command command) {
+            super(command, false);
+        }
+
+        Reply result(Reply reply) {
+            return reply;
+        }
+    }
+
+    /**
+     * A command completed with null when its reply was positive.
+     */
+    class VoidOperation extends CommandOperation<Void> {
+        VoidOperation(Command command) {
+            super(command, true);
+        }
+
+        Void result(Reply reply) {
+            return null;
+        }
+    }
+
+    class LoginOperation extends Operation<NioFTPSession> {
+        private LinkedList<Command> commands = new LinkedList<Command>();
+
+        private boolean greeting = true;
+
+        private boolean system = false;
+
+        void start() {
+            // the greeting of the server is the first reply
+            commands.add(new Command(Command.USER, user));
+            if (password != null && password.length() > 0)
+                commands.add(new Command(Command.PASS, password));
+            if (account != null && account.length() > 0)
+                commands.add(new Command(Command.ACCT, account));
+        }
+
+        void reply(Reply reply) throws Exception {
+            if (ReplyCode.isPositivePreliminaryReply(reply))
+                return;
+            if (system) {
+                if (ReplyCode.isPositiveCompletionReply(reply))
+                    factory = new FTPFileFactory((String) reply.getLines()
+                            .get(0));
+                connected = true;
+                complete(NioFTPSession.this);
+                return;
+            }
+            reply.validate();
+            // 230 after USER or PASS: the remaining commands are not needed
+            if (!greeting && ReplyCode.isPositiveCompletionReply(reply))
+                commands.clear();
+            greeting = false;
+            if (commands.isEmpty()) {
+                system = true;
+                send(new Command(Command.SYST));
+            } else {
+                send(commands.removeFirst());
+            }
+        }
+
+        void fail(Throwable cause) {
+            super.fail(cause);
+            if (!connected)
+                close(cause);
+        }
+    }
+
+    /**
+     * An operation with a passive data connection: PASV, the transfer
+     * command and the data are handled as a state machine. The operation is
+     * completed when the data connection is finished and the final reply was
+     * received (in any order).
+     */
+    abstract class DataOperation<T> extends Operation<T> implements
+            ChannelHandler {
+        private static final int TYPE = 0;
+
+        private static final int PASV = 1;
+
+        private static final int TRANSFER = 2;
+
+        private Command command;
+
+        private boolean binary;
+
+        private int stage;
+
+        SocketChannel data;
+
+        private SelectionKey dataKey;
+
+        private boolean dataDone = false;
+
+        private boolean replyDone = false;
+
+        // the cause if the data connection failed before the final reply,
+        // the replies of the transfer command and ABOR are read before the
+        // operation fails
+        private Throwable dataFailure = null;
+
+        private int pendingReplies = 0;
+
+        DataOperation(Command command, boolean binary) {
+            this.command = command;
+            this.binary = binary;
+        }
+
+        void start() throws IOException {
+            if (binary) {
+                stage = TYPE;
+                send(new Command(Command.TYPE_I));
+            } else {
+                stage = PASV;
+                send(new Command(Command.PASV));
+            }
+        }
+
+        void reply(Reply reply) throws Exception {
+            if (dataFailure != null) {
+                if (!ReplyCode.isPositivePreliminaryReply(reply)
+                        && --pendingReplies == 0)
+                    fail(dataFailure);
+                return;
+            }
+            switch (stage) {
+            case TYPE:
+                reply.validate();
+                stage = PASV;
+                send(new Command(Command.PASV));
+                break;
+            case PASV:
+                reply.validate();
+                openData(ReplyFormatter.parsePASVCommand(reply));
+                stage = TRANSFER;
+                send(command);
+                break;
+            default:
+                if (ReplyCode.isPositivePreliminaryReply(reply))
+                    return;
+                reply.validate();
+                replyDone = true;
+                checkDone();
+            }
+        }
+
+        private void openData(InetSocketAddress dataAddress)
+                throws IOException {
+            data = SocketChannel.open();
+            data.configureBlocking(false);
+            boolean connected = data.connect(dataAddress);
+            dataKey = loop.register(data, connected ? dataOps()
+                    : SelectionKey.OP_CONNECT, this);
+        }
+
+        public void handle(SelectionKey key) throws IOException {
+            touch();
+            if (key.isConnectable()) {
+                data.finishConnect();
+                key.interestOps(dataOps());
+                return;
+            }
+            if (key.isReadable())
+                readable();
+            else if (key.isWritable())
+                writable();
+        }
+
+        /**
+         * Called if the data connection or the local file failed. If the
+         * final reply of the transfer command is still to come the transfer
+         * is aborted, so the replies do not end up at the next operation.
+         */
+        public void failed(Throwable cause) {
+            if (replyDone || dataFailure != null) {
+                fail(cause);
+                return;
+            }
+            closeData();
+            dataFailure = cause;
+            // the first reply ends the transfer command (mostly 426), the
+            // second one belongs to the ABOR
+            pendingReplies = 2;
+            try {
+                send(new Command(Command.ABOR));
+            } catch (IOException ioe) {
+                close(ioe);
+            }
+        }
+
+        void dataFinished() throws IOException {
+            closeData();
+            dataDone = true;
+            checkDone();
+        }
+
+        private void checkDone() throws IOException {
+            if (dataDone && replyDone)
+                complete(result());
+        }
+
+        private void closeData() {
+            if (dataKey != null)
+                dataKey.cancel();
+            try {
+                if (data != null)
+                    data.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing data connection", ioe);
+            }
+        }
+
+        void cleanup() {
+            closeData();
+        }
+
+        abstract int dataOps();
+
+        void readable() throws IOException {
+        }
+
+        void writable() throws IOException {
+        }
+
+        abstract T result() throws IOException;
+    }
+
+    class ListOperation extends DataOperation<List<FTPFile>> {
+        private String directory;
+
+        private ReplyDecoder lines = null;
+
+        private ByteBuffer buffer = null;
+
+        private List<FTPFile> files = new ArrayList<FTPFile>();
+
+        ListOperation(String directory) {
+            super(new ListCommand(directory), false);
+            this.directory = directory;
+        }
+
+        void start() throws IOException {
+            lines = new ReplyDecoder(16384);
+            buffer = BufferPool.getDefault().acquire(16384);
+            super.start();
+        }
+
+        void cleanup() {
+            super.cleanup();
+            if (lines != null)
+                lines.release();
+            BufferPool.getDefault().release(buffer);
+            lines = null;
+            buffer = null;
+        }
+
+        int dataOps() {
+            return SelectionKey.OP_READ;
+        }
+
+        void readable() throws IOException {
+            int amount;
+            while ((amount = data.read(buffer)) > 0) {
+                buffer.flip();
+                lines.feed(buffer);
+                buffer.clear();
+                String line;
+                while ((line = lines.pollLine()) != null)
+                    parse(line);
+            }
+            if (amount < 0) {
+                String line = lines.drainLine();
+                if (line != null)
+                    parse(line);
+                dataFinished();
+            }
+        }
+
+        private void parse(String line) {
+            if (line.length() == 0)
+                return;
+            FTPFile file = factory.parseLine(line, directory);
+            if (file != null)
+                files.add(file);
+        }
+
+        List<FTPFile> result() {
+            return files;
+        }
+    }
+
+    class DownloadOperation extends DataOperation<Long> {
+        private FTPFile toFile;
+
+        private FileChannel file;
+
+        private ByteBuffer buffer = null;
+
+        private long bytes = 0;
+
+        DownloadOperation(FTPFile fromFile, FTPFile toFile) {
+            super(new Command(Command.RETR, fromFile.toString()), true);
+            this.toFile = toFile;
+        }
+
+        void start() throws IOException {
+            file = new FileOutputStream(toFile.getFile()).getChannel();
+            buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
+            super.start();
+        }
+
+        int dataOps() {
+            return SelectionKey.OP_READ;
+        }
+
+        void readable() throws IOException {
+            int amount;
+            // a limited number of reads, so one fast transfer can not block
+            // the other sessions of the loop
+            for (int i = 0; i < 16; i++) {
+                amount = data.read(buffer);
+                if (amount < 0) {
+                    file.close();
+                    dataFinished();
+                    return;
+                }
+                if (amount == 0)
+                    return;
+                bytes += amount;
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    file.write(buffer);
+                buffer.clear();
+            }
+        }
+
+        void cleanup() {
+            super.cleanup();
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing " + toFile, ioe);
+            }
+            BufferPool.getDefault().release(buffer);
+            buffer = null;
+        }
+
+        Long result() {
+            return Long.valueOf(bytes);
+        }
+    }
+
+    class UploadOperation extends DataOperation<Long> {
+        private FTPFile fromFile;
+
+        private FileChannel file;
+
+        private ByteBuffer buffer = null;
+
+        private long bytes = 0;
+
+        UploadOperation(FTPFile fromFile, FTPFile toFile) {
+            super(new Command(Command.STOR, toFile.toString()), true);
+            this.fromFile = fromFile;
+        }
+
+        void start() throws IOException {
+            file = new FileInputStream(fromFile.getFile()).getChannel();
+            buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
+            buffer.flip();
+            super.start();
+        }
+
+        int dataOps() {
+            return SelectionKey.OP_WRITE;
+        }
+
+        void writable() throws IOException {
+            for (int i = 0; i < 16; i++) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int amount = file.read(buffer);
+                    buffer.flip();
+                    if (amount < 0) {
+                        // closing the data connection ends the file
+                        file.close();
+                        dataFinished();
+                        return;
+                    }
+                }
+                int written = data.write(buffer);
+                if (written == 0)
+                    return;
+                bytes += written;
+            }
+        }
+
+        void cleanup() {
+            super.cleanup();
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException ioe) {
+                log.debug("Error closing " + fromFile, ioe);
+            }
+            BufferPool.getDefault().release(buffer);
+            buffer = null;
+        }
+
+        Long result() {
+            return Long.valueOf(bytes);
+        }
+    }
+}
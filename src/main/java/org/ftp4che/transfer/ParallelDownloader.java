@@ -0,0 +1,322 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.FTPConnection;
+import org.ftp4che.FTPConnectionPool;
+import org.ftp4che.exception.FtpFileNotFoundException;
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * Downloads a directory tree over several connections of a
+ * FTPConnectionPool. Directories are listed concurrently and the files found
+ * are scheduled over all connections, largest file first, so the connections
+ * are kept busy until the end of the transfer. Directory listings are
+ * preferred over file transfers to find all work as early as possible.
+ * 
+ * The pool should allow at least as many connections per server as the
+ * downloader uses, otherwise the threads wait for each other.
+ */
+public class ParallelDownloader {
+    private static final Logger log = Logger
+            .getLogger(ParallelDownloader.class.getName());
+
+    private FTPConnectionPool pool;
+
+    private Properties properties;
+
+    private int connections = 4;
+
+    private PriorityBlockingQueue<Task> queue;
+
+    private AtomicInteger pending;
+
+    private AtomicLong sequence;
+
+    private volatile TransferReport report;
+
+    private volatile boolean cancelled;
+
+    private volatile Worker[] workers;
+
+    /**
+     * @param pool
+     *            the pool the connections are borrowed from
+     * @param pt
+     *            the connection properties, see
+     *            FTPConnectionFactory.getInstance(Properties)
+     * @param connections
+     *            the number of connections used concurrently
+     */
+    public ParallelDownloader(FTPConnectionPool pool, Properties pt,
+            int connections) {
+        this.pool = pool;
+        this.properties = pt;
+        setConnections(connections);
+    }
+
+    /**
+     * This method is used to download a directory with all files and
+     * subdirectories to the local computer. It returns when all transfers are
+     * done, errors of single files or directories do not stop the download
+     * but are recorded in the returned report.
+     * 
+     * @param srcDir
+     *            the directory on the server
+     * @param dstDir
+     *            the local directory
+     * @return TransferReport totals and per file results
+     * @throws FtpFileNotFoundException
+     *             will be thrown if srcDir is not a directory
+     * @throws InterruptedIOException
+     *             will be thrown if the calling thread was interrupted, the
+     *             running transfers are aborted and the method returns after
+     *             the download threads stopped
+     */
+    public TransferReport downloadDirectory(FTPFile srcDir, FTPFile dstDir)
+            throws FtpFileNotFoundException, InterruptedIOException {
+        if (!srcDir.isDirectory())
+            throw new FtpFileNotFoundException("Downloading: "
+                    + srcDir.getName()
+                    + " is not possible, it's not a directory!");
+
+        queue = new PriorityBlockingQueue<Task>();
+        pending = new AtomicInteger();
+        sequence = new AtomicLong();
+        cancelled = false;
+        report = new TransferReport();
+
+        schedule(new Task(srcDir, dstDir));
+
+        Worker[] workers = new Worker[connections];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new Worker(i);
+        this.workers = workers;
+        for (int i = 0; i < workers.length; i++)
+            workers[i].start();
+        try {
+            for (int i = 0; i < workers.length; i++)
+                workers[i].join();
+        } catch (InterruptedException ie) {
+            // the workers write the local files, so they are stopped before
+            // returning
+            cancel();
+            for (int i = 0; i < workers.length; i++) {
+                while (workers[i].isAlive()) {
+                    try {
+                        workers[i].join();
+                    } catch (InterruptedException again) {
+                    }
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for the download to finish");
+        } finally {
+            this.workers = null;
+            report.finished();
+        }
+        return report;
+    }
+
+    /**
+     * Stops the download, files and directories that are not started yet are
+     * skipped and the running transfers are aborted. downloadDirectory returns
+     * as soon as the download threads stopped.
+     */
+    public void cancel() {
+        cancelled = true;
+        Worker[] running = workers;
+        if (running != null) {
+            for (int i = 0; i < running.length; i++)
+                running[i].cancel();
+        }
+    }
+
+    /**
+     * @return Returns the report of the running (or last) download. It can be
+     *         used to get the running totals from another thread.
+     */
+    public TransferReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return Returns the connections.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @param connections
+     *            The number of connections used concurrently.
+     */
+    public void setConnections(int connections) {
+        if (connections < 1)
+            throw new IllegalArgumentException(
+                    "At least one connection is needed");
+        this.connections = connections;
+    }
+
+    private void schedule(Task task) {
+        task.sequence = sequence.getAndIncrement();
+        if (!task.isDirectory())
+            report.fileQueued(task.source.getSize());
+        pending.incrementAndGet();
+        queue.add(task);
+    }
+
+    private void listDirectory(FTPConnection connection, Task task)
+            throws Exception {
+        new File(task.destination.toString()).mkdirs();
+
+        String listDir = task.source.toString();
+        listDir = (listDir.endsWith("/") && listDir.length() > 1 ? listDir
+                .substring(0, listDir.length() - 1) : listDir);
+        List<FTPFile> files = connection.getDirectoryListing(listDir);
+
+        for (Iterator<FTPFile> it = files.iterator(); it.hasNext();) {
+            FTPFile file = it.next();
+            if (file.getName().equals(".") || file.getName().equals(".."))
+                continue;
+            file.setPath(task.source.toString());
+            schedule(new Task(file, new FTPFile(task.destination.toString(),
+                    file.getName(), file.isDirectory())));
+        }
+        report.directoryDone();
+    }
+
+    private long downloadFile(FTPConnection connection, Task task)
+            throws Exception {
+        connection.downloadFile(task.source, task.destination);
+        return new File(task.destination.toString()).length();
+    }
+
+    private class Worker extends Thread {
+        private volatile FTPConnection connection = null;
+
+        Worker(int number) {
+            super("ParallelDownloader-" + number);
+            setDaemon(true);
+        }
+
+        /**
+         * Stops the worker, a running transfer is aborted.
+         */
+        void cancel() {
+            // aborted first, an interrupt alone would close the data channel
+            // and break the connection
+            FTPConnection running = connection;
+            if (running != null)
+                running.abort();
+            interrupt();
+        }
+
+        public void run() {
+            try {
+                while (!cancelled) {
+                    Task task = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (task == null) {
+                        if (pending.get() == 0)
+                            break;
+                        continue;
+                    }
+                    try {
+                        execute(task);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                cancelled = true;
+            } finally {
+                if (connection != null)
+                    pool.returnConnection(connection);
+            }
+        }
+
+        private void execute(Task task) {
+            long start = System.currentTimeMillis();
+            try {
+                if (connection == null)
+                    connection = pool.borrowConnection(properties);
+                if (task.isDirectory()) {
+                    listDirectory(connection, task);
+                } else {
+                    long bytes = downloadFile(connection, task);
+                    report.addResult(new TransferResult(task.source,
+                            task.destination, bytes, System
+                                    .currentTimeMillis()
+                                    - start, null));
+                }
+            } catch (Exception e) {
+                log.warn("Downloading " + task.source + " failed", e);
+                if (e instanceof IOException && connection != null) {
+                    // the connection is broken, the next task gets a new one
+                    pool.invalidateConnection(connection);
+                    connection = null;
+                }
+                report.addResult(new TransferResult(task.source,
+                        task.destination, 0, System.currentTimeMillis()
+                                - start, e));
+            }
+        }
+    }
+
+    /**
+     * A directory to list or a file to download. Directories are ordered
+     * before files, larger files before smaller ones.
+     */
+    private static class Task implements Comparable<Task> {
+        FTPFile source;
+
+        FTPFile destination;
+
+        long sequence;
+
+        Task(FTPFile source, FTPFile destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        boolean isDirectory() {
+            return source.isDirectory();
+        }
+
+        public int compareTo(Task other) {
+            if (isDirectory() != other.isDirectory())
+                return isDirectory() ? -1 : 1;
+            if (!isDirectory() && source.getSize() != other.source.getSize())
+                return source.getSize() > other.source.getSize() ? -1 : 1;
+            return sequence < other.sequence ? -1
+                    : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
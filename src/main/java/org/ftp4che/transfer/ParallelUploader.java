@@ -0,0 +1,411 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.FTPConnection;
+import org.ftp4che.FTPConnectionPool;
+import org.ftp4che.exception.FtpFileNotFoundException;
+import org.ftp4che.exception.FtpWorkflowException;
+import org.ftp4che.reply.ReplyCode;
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * Uploads a local directory tree over several connections of a
+ * FTPConnectionPool. First the remote directory skeleton is created with
+ * pipelined MKD commands on one connection, then the files are handed to the
+ * upload threads through a bounded queue. Walking the local tree blocks while
+ * the queue is full, so large trees are never held in memory completely.
+ * 
+ * A file that fails with a 4xx reply or a communication problem is retried on
+ * a fresh connection (up to retries times), a 5xx reply is not retried.
+ */
+public class ParallelUploader {
+    private static final Logger log = Logger.getLogger(ParallelUploader.class
+            .getName());
+
+    private static final Task END = new Task(null, null);
+
+    private FTPConnectionPool pool;
+
+    private Properties properties;
+
+    private int connections = 4;
+
+    private int queueSize = 64;
+
+    private int retries = 2;
+
+    private long retryDelay = 1000;
+
+    private BlockingQueue<Task> queue;
+
+    private volatile TransferReport report;
+
+    private volatile boolean cancelled;
+
+    private volatile Worker[] workers;
+
+    /**
+     * @param pool
+     *            the pool the connections are borrowed from
+     * @param pt
+     *            the connection properties, see
+     *            FTPConnectionFactory.getInstance(Properties)
+     * @param connections
+     *            the number of connections used concurrently
+     */
+    public ParallelUploader(FTPConnectionPool pool, Properties pt,
+            int connections) {
+        this.pool = pool;
+        this.properties = pt;
+        setConnections(connections);
+    }
+
+    /**
+     * This method is used to upload a local directory with all files and
+     * subdirectories to the server. It returns when all transfers are done,
+     * errors of single files or directories do not stop the upload but are
+     * recorded in the returned report.
+     * 
+     * @param srcDir
+     *            the local directory
+     * @param dstDir
+     *            the directory on the server
+     * @return TransferReport totals and per file results
+     * @throws FtpFileNotFoundException
+     *             will be thrown if srcDir is not a directory
+     * @throws InterruptedIOException
+     *             will be thrown if the calling thread was interrupted, the
+     *             running transfers are aborted and the method returns after
+     *             the upload threads stopped
+     */
+    public TransferReport uploadDirectory(FTPFile srcDir, FTPFile dstDir)
+            throws FtpFileNotFoundException, InterruptedIOException {
+        if (!srcDir.isDirectory() || !srcDir.getFile().isDirectory())
+            throw new FtpFileNotFoundException("Uploading: " + srcDir.getName()
+                    + " is not possible, it's not a directory!");
+
+        queue = new ArrayBlockingQueue<Task>(queueSize);
+        cancelled = false;
+        report = new TransferReport();
+
+        Worker[] workers = new Worker[connections];
+        try {
+            List<Task> directories = makeDirectories(srcDir, dstDir);
+
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(i);
+                workers[i].start();
+            }
+            this.workers = workers;
+            for (Iterator<Task> it = directories.iterator(); it.hasNext()
+                    && !cancelled;) {
+                Task directory = it.next();
+                File[] files = directory.source.getFile().listFiles();
+                if (files == null)
+                    continue;
+                for (int i = 0; i < files.length && !cancelled; i++) {
+                    if (!files[i].isFile())
+                        continue;
+                    FTPFile file = new FTPFile(files[i]);
+                    report.fileQueued(file.getSize());
+                    queue.put(new Task(file, new FTPFile(directory.destination
+                            .toString(), file.getName())));
+                }
+            }
+            if (cancelled)
+                // cancel() may have run before the workers were started
+                stopWorkers(workers);
+            else
+                for (int i = 0; i < workers.length; i++)
+                    queue.put(END);
+            for (int i = 0; i < workers.length; i++)
+                workers[i].join();
+        } catch (InterruptedException ie) {
+            // the workers use pooled connections, so they are stopped before
+            // returning
+            cancelled = true;
+            queue.clear();
+            stopWorkers(workers);
+            for (int i = 0; i < workers.length; i++) {
+                while (workers[i] != null && workers[i].isAlive()) {
+                    try {
+                        workers[i].join();
+                    } catch (InterruptedException again) {
+                    }
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for the upload to finish");
+        } finally {
+            this.workers = null;
+            report.finished();
+        }
+        return report;
+    }
+
+    /**
+     * Stops the upload, files that are not started yet are skipped and the
+     * running transfers are aborted. uploadDirectory returns as soon as the
+     * upload threads stopped.
+     */
+    public void cancel() {
+        cancelled = true;
+        if (queue != null)
+            queue.clear();
+        Worker[] running = workers;
+        if (running != null)
+            stopWorkers(running);
+    }
+
+    private static void stopWorkers(Worker[] workers) {
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null)
+                workers[i].cancel();
+        }
+    }
+
+    /**
+     * Creates the remote directories with one pipelined batch. A 550 reply is
+     * ignored because most servers send it for existing directories, if the
+     * directory really could not be created its files will fail.
+     * 
+     * @return List of Tasks, one for each directory, parents first
+     */
+    private List<Task> makeDirectories(FTPFile srcDir, FTPFile dstDir)
+            throws InterruptedException {
+        List<Task> directories = new ArrayList<Task>();
+        directories.add(new Task(srcDir, dstDir));
+        for (int i = 0; i < directories.size(); i++) {
+            Task directory = directories.get(i);
+            File[] files = directory.source.getFile().listFiles();
+            if (files == null)
+                continue;
+            for (int j = 0; j < files.length; j++) {
+                if (files[j].isDirectory())
+                    directories.add(new Task(new FTPFile(files[j]),
+                            new FTPFile(directory.destination.toString(),
+                                    files[j].getName(), true)));
+            }
+        }
+
+        List<String> pathnames = new ArrayList<String>(directories.size());
+        for (Iterator<Task> it = directories.iterator(); it.hasNext();)
+            pathnames.add(it.next().destination.toString());
+
+        long start = System.currentTimeMillis();
+        FTPConnection connection = null;
+        try {
+            connection = pool.borrowConnection(properties);
+            List<Exception> results = connection.makeDirectories(pathnames);
+            pool.returnConnection(connection);
+            for (int i = 0; i < results.size(); i++) {
+                Exception e = results.get(i);
+                if (e == null || isExistsError(e)) {
+                    report.directoryDone();
+                    continue;
+                }
+                Task directory = directories.get(i);
+                report.addResult(new TransferResult(directory.source,
+                        directory.destination, 0, 0, e));
+            }
+        } catch (Exception e) {
+            log.warn("Creating the remote directories failed", e);
+            if (e instanceof IOException && connection != null)
+                pool.invalidateConnection(connection);
+            report.addResult(new TransferResult(srcDir, dstDir, 0, System
+                    .currentTimeMillis()
+                    - start, e));
+        }
+        return directories;
+    }
+
+    private static boolean isExistsError(Exception e) {
+        return e instanceof FtpWorkflowException
+                && ReplyCode.REPLY_550.equals(((FtpWorkflowException) e)
+                        .getCode());
+    }
+
+    /**
+     * @return Returns the report of the running (or last) upload. It can be
+     *         used to get the running totals from another thread.
+     */
+    public TransferReport getReport() {
+        return report;
+    }
+
+    /**
+     * @return Returns the connections.
+     */
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @param connections
+     *            The number of connections used concurrently.
+     */
+    public void setConnections(int connections) {
+        if (connections < 1)
+            throw new IllegalArgumentException(
+                    "At least one connection is needed");
+        this.connections = connections;
+    }
+
+    /**
+     * @return Returns the queueSize.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize
+     *            The number of files that are queued for the upload threads
+     *            before walking the local tree blocks. Default is 64.
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("queueSize must be at least 1");
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @return Returns the retries.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries
+     *            How often a failed file is uploaded again. Default is 2.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @return Returns the retryDelay.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param retryDelay
+     *            Milliseconds to wait before a failed file is uploaded again.
+     *            Default is 1 second.
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    private class Worker extends Thread {
+        private volatile FTPConnection connection = null;
+
+        Worker(int number) {
+            super("ParallelUploader-" + number);
+            setDaemon(true);
+        }
+
+        /**
+         * Stops the worker, a running transfer is aborted.
+         */
+        void cancel() {
+            // aborted first, an interrupt alone would close the data channel
+            // and break the connection
+            FTPConnection running = connection;
+            if (running != null)
+                running.abort();
+            interrupt();
+        }
+
+        public void run() {
+            try {
+                while (!cancelled) {
+                    Task task = queue.take();
+                    if (task == END || cancelled)
+                        break;
+                    upload(task);
+                }
+            } catch (InterruptedException ie) {
+                cancelled = true;
+            } finally {
+                if (connection != null)
+                    pool.returnConnection(connection);
+            }
+        }
+
+        private void upload(Task task) throws InterruptedException {
+            long start = System.currentTimeMillis();
+            for (int attempt = 0;; attempt++) {
+                try {
+                    if (connection == null)
+                        connection = pool.borrowConnection(properties);
+                    connection.uploadFile(task.source, task.destination);
+                    report.addResult(new TransferResult(task.source,
+                            task.destination, task.source.getSize(), System
+                                    .currentTimeMillis()
+                                    - start, null));
+                    return;
+                } catch (Exception e) {
+                    if (e instanceof IOException && connection != null) {
+                        // the connection is broken, retry on a new one
+                        pool.invalidateConnection(connection);
+                        connection = null;
+                    }
+                    if (attempt >= retries || cancelled
+                            || e instanceof FtpWorkflowException) {
+                        log.warn("Uploading " + task.source + " failed", e);
+                        report.addResult(new TransferResult(task.source,
+                                task.destination, 0, System
+                                        .currentTimeMillis()
+                                        - start, e));
+                        return;
+                    }
+                    log.info("Uploading " + task.source + " failed ("
+                            + e.getMessage() + "), retrying");
+                    Thread.sleep(retryDelay);
+                }
+            }
+        }
+    }
+
+    private static class Task {
+        FTPFile source;
+
+        FTPFile destination;
+
+        Task(FTPFile source, FTPFile destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.ftp4che.FTPConnection;
+import org.ftp4che.FTPConnectionPool;
+import org.ftp4che.exception.ConfigurationException;
+import org.ftp4che.exception.FtpIOException;
+import org.ftp4che.exception.FtpWorkflowException;
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * Downloads a single file over several connections of a FTPConnectionPool.
+ * The file is split into byte ranges, every range is fetched on its own
+ * connection with REST and RETR (see FTPConnection.downloadRange) and
+ * written into the preallocated local file at its position. On links with a
+ * high bandwidth delay product this multiplies the throughput of a single
+ * TCP stream.
+ * 
+ * The server has to support REST STREAM; a range that fails is retried on a
+ * new connection.
+ */
+public class SegmentedDownloader {
+    private static final Logger log = Logger
+            .getLogger(SegmentedDownloader.class.getName());
+
+    private FTPConnectionPool pool;
+
+    private Properties properties;
+
+    private int segments = 4;
+
+    private long minSegmentSize = 1024 * 1024;
+
+    private int retries = 2;
+
+    /**
+     * @param pool
+     *            the pool the connections are borrowed from
+     * @param pt
+     *            the connection properties, see
+     *            FTPConnectionFactory.getInstance(Properties)
+     * @param segments
+     *            the maximum number of ranges (and connections) per file
+     */
+    public SegmentedDownloader(FTPConnectionPool pool, Properties pt,
+            int segments) {
+        this.pool = pool;
+        this.properties = pt;
+        setSegments(segments);
+    }
+
+    /**
+     * This method is used to download a file from the server to a specifed
+     * local file object. If the size of fromFile is not known it is requested
+     * with SIZE.
+     * 
+     * @param fromFile
+     *            the file on the server
+     * @param toFile
+     *            the file object where the file should be stored (on the local
+     *            computer)
+     * @return TransferResult of the file
+     * @throws IOException
+     *             will be thrown if there was a communication problem with the
+     *             server or the local file could not be written
+     * @throws FtpWorkflowException
+     *             will be thrown if there was a ftp reply class 5xx. in most
+     *             cases wrong commands where send
+     * @throws FtpIOException
+     *             will be thrown if there was a ftp reply class 4xx. this
+     *             should indicate some secific problems on the server
+     * @throws ConfigurationException
+     *             will be thrown if the connection properties are invalid
+     */
+    public TransferResult downloadFile(FTPFile fromFile, FTPFile toFile)
+            throws IOException, FtpWorkflowException, FtpIOException,
+            ConfigurationException {
+        long start = System.currentTimeMillis();
+        long size = fromFile.getSize();
+        if (size <= 0) {
+            FTPConnection connection = pool.borrowConnection(properties);
+            try {
+                connection.setTransferType(true);
+                size = connection.getFileSize(fromFile);
+                pool.returnConnection(connection);
+            } catch (IOException ioe) {
+                pool.invalidateConnection(connection);
+                throw ioe;
+            } catch (FtpWorkflowException fwe) {
+                pool.returnConnection(connection);
+                throw fwe;
+            } catch (FtpIOException fioe) {
+                pool.returnConnection(connection);
+                throw fioe;
+            }
+        }
+
+        int count = (int) Math.max(1, Math.min(segments,
+                (size + minSegmentSize - 1) / minSegmentSize));
+        long segmentSize = size / count;
+
+        RandomAccessFile file = new RandomAccessFile(toFile.getFile(), "rw");
+        try {
+            file.setLength(size);
+            FileChannel channel = file.getChannel();
+
+            Segment[] workers = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                long offset = i * segmentSize;
+                long length = (i == count - 1 ? size - offset : segmentSize);
+                workers[i] = new Segment(i, fromFile, channel, offset, length,
+                        size);
+                workers[i].start();
+            }
+            try {
+                for (int i = 0; i < count; i++)
+                    workers[i].join();
+            } catch (InterruptedException ie) {
+                // the segments write to the file, so it is closed after they
+                // stopped
+                for (int i = 0; i < count; i++)
+                    workers[i].cancel();
+                for (int i = 0; i < count; i++) {
+                    while (workers[i].isAlive()) {
+                        try {
+                            workers[i].join();
+                        } catch (InterruptedException again) {
+                        }
+                    }
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while waiting for the download of "
+                                + fromFile);
+            }
+
+            for (int i = 0; i < count; i++) {
+                Exception e = workers[i].exception;
+                if (e instanceof IOException)
+                    throw (IOException) e;
+                if (e instanceof FtpWorkflowException)
+                    throw (FtpWorkflowException) e;
+                if (e instanceof FtpIOException)
+                    throw (FtpIOException) e;
+                if (e instanceof ConfigurationException)
+                    throw (ConfigurationException) e;
+                if (e instanceof RuntimeException)
+                    throw (RuntimeException) e;
+            }
+        } finally {
+            file.close();
+        }
+
+        return new TransferResult(fromFile, toFile, size, System
+                .currentTimeMillis()
+                - start, null);
+    }
+
+    /**
+     * @return Returns the segments.
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * @param segments
+     *            The maximum number of ranges (and connections) per file.
+     */
+    public void setSegments(int segments) {
+        if (segments < 1)
+            throw new IllegalArgumentException(
+                    "At least one segment is needed");
+        this.segments = segments;
+    }
+
+    /**
+     * @return Returns the minSegmentSize.
+     */
+    public long getMinSegmentSize() {
+        return minSegmentSize;
+    }
+
+    /**
+     * @param minSegmentSize
+     *            Files are not split into ranges smaller than this. Default
+     *            is 1 MB.
+     */
+    public void setMinSegmentSize(long minSegmentSize) {
+        if (minSegmentSize < 1)
+            throw new IllegalArgumentException(
+                    "minSegmentSize must be at least 1");
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * @return Returns the retries.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * @param retries
+     *            How often a failed range is downloaded again. Default is 2.
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    private class Segment extends Thread {
+        private FTPFile fromFile;
+
+        private FileChannel channel;
+
+        private long offset;
+
+        private long length;
+
+        Exception exception = null;
+
+        private volatile boolean cancelled = false;
+
+        private volatile FTPConnection connection = null;
+
+        Segment(int number, FTPFile fromFile, FileChannel channel,
+                long offset, long length, long size) {
+            super("SegmentedDownloader-" + number);
+            setDaemon(true);
+            // the range end is compared against the size
+            this.fromFile = new FTPFile(fromFile.getPath(), fromFile
+                    .getName());
+            this.fromFile.setSize(size);
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Stops the segment, a running transfer is aborted.
+         */
+        void cancel() {
+            cancelled = true;
+            interrupt();
+            FTPConnection running = connection;
+            if (running != null)
+                running.abort();
+        }
+
+        public void run() {
+            for (int attempt = 0;; attempt++) {
+                FTPConnection connection = null;
+                try {
+                    connection = pool.borrowConnection(properties);
+                    this.connection = connection;
+                    if (cancelled)
+                        throw new InterruptedIOException("Download of "
+                                + fromFile + " was cancelled");
+                    long received = connection.downloadRange(fromFile,
+                            channel, offset, length);
+                    this.connection = null;
+                    pool.returnConnection(connection);
+                    connection = null;
+                    if (received < length) {
+                        // a retry continues behind the received bytes
+                        offset += received;
+                        length -= received;
+                        throw new IOException("Range " + offset + "-"
+                                + (offset + length) + " of " + fromFile
+                                + " ended early");
+                    }
+                    exception = null;
+                    return;
+                } catch (Exception e) {
+                    this.connection = null;
+                    if (connection != null) {
+                        if (e instanceof IOException)
+                            pool.invalidateConnection(connection);
+                        else
+                            pool.returnConnection(connection);
+                    }
+                    exception = e;
+                    if (cancelled || attempt >= retries
+                            || e instanceof FtpWorkflowException
+                            || e instanceof ConfigurationException)
+                        return;
+                    log.info("Range " + offset + " of " + fromFile
+                            + " failed (" + e.getMessage() + "), retrying");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.transfer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals and per file results of a parallel transfer. The totals are
+ * updated by the transfer threads and may be read while the transfer is
+ * running.
+ */
+public class TransferReport {
+
+    private AtomicLong filesQueued = new AtomicLong();
+
+    private AtomicLong bytesQueued = new AtomicLong();
+
+    private AtomicLong filesTransferred = new AtomicLong();
+
+    private AtomicLong filesFailed = new AtomicLong();
+
+    private AtomicLong bytesTransferred = new AtomicLong();
+
+    private AtomicLong directories = new AtomicLong();
+
+    private List<TransferResult> results = Collections
+            .synchronizedList(new ArrayList<TransferResult>());
+
+    private long startTime = System.currentTimeMillis();
+
+    private volatile long endTime = -1;
+
+    void fileQueued(long size) {
+        filesQueued.incrementAndGet();
+        if (size > 0)
+            bytesQueued.addAndGet(size);
+    }
+
+    void directoryDone() {
+        directories.incrementAndGet();
+    }
+
+    void addResult(TransferResult result) {
+        if (result.isSuccessful()) {
+            filesTransferred.incrementAndGet();
+            bytesTransferred.addAndGet(result.getBytes());
+        } else {
+            filesFailed.incrementAndGet();
+        }
+        results.add(result);
+    }
+
+    void finished() {
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Returns the number of files found so far.
+     */
+    public long getFilesQueued() {
+        return filesQueued.get();
+    }
+
+    /**
+     * @return Returns the size of all files found so far.
+     */
+    public long getBytesQueued() {
+        return bytesQueued.get();
+    }
+
+    /**
+     * @return Returns the number of files transfered successfully.
+     */
+    public long getFilesTransferred() {
+        return filesTransferred.get();
+    }
+
+    /**
+     * @return Returns the number of files and directories that failed.
+     */
+    public long getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    /**
+     * @return Returns the number of bytes of all successfully transfered
+     *         files.
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * @return Returns the number of directories that were processed.
+     */
+    public long getDirectories() {
+        return directories.get();
+    }
+
+    /**
+     * @return Returns true if the transfer is finished.
+     */
+    public boolean isFinished() {
+        return endTime != -1;
+    }
+
+    /**
+     * @return Returns the time the transfer took (or is running) in ms.
+     */
+    public long getElapsedTime() {
+        return (endTime == -1 ? System.currentTimeMillis() : endTime)
+                - startTime;
+    }
+
+    /**
+     * @return Returns a copy of the list of TransferResults in the order the
+     *         transfers finished.
+     */
+    public List<TransferResult> getResults() {
+        synchronized (results) {
+            return new ArrayList<TransferResult>(results);
+        }
+    }
+
+    /**
+     * @return Returns the TransferResults of the failed transfers.
+     */
+    public List<TransferResult> getFailures() {
+        List<TransferResult> failures = new ArrayList<TransferResult>();
+        synchronized (results) {
+            for (Iterator<TransferResult> it = results.iterator(); it
+                    .hasNext();) {
+                TransferResult result = it.next();
+                if (!result.isSuccessful())
+                    failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return Returns true if no transfer failed.
+     */
+    public boolean isSuccessful() {
+        return filesFailed.get() == 0;
+    }
+
+    public String toString() {
+        return filesTransferred + " files (" + bytesTransferred
+                + " bytes) transfered, " + filesFailed + " failed, "
+                + directories + " directories in " + getElapsedTime() + " ms";
+    }
+}
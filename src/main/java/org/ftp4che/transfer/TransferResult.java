@@ -0,0 +1,94 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.transfer;
+
+import org.ftp4che.util.ftpfile.FTPFile;
+
+/**
+ * The result of a single file transfer done by one of the parallel transfer
+ * engines.
+ */
+public class TransferResult {
+
+    private FTPFile source;
+
+    private FTPFile destination;
+
+    private long bytes;
+
+    private long time;
+
+    private Exception exception;
+
+    public TransferResult(FTPFile source, FTPFile destination, long bytes,
+            long time, Exception exception) {
+        this.source = source;
+        this.destination = destination;
+        this.bytes = bytes;
+        this.time = time;
+        this.exception = exception;
+    }
+
+    /**
+     * @return Returns true if the file was transfered without an error.
+     */
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+
+    /**
+     * @return Returns the source.
+     */
+    public FTPFile getSource() {
+        return source;
+    }
+
+    /**
+     * @return Returns the destination.
+     */
+    public FTPFile getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return Returns the number of bytes that were transfered.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Returns the time the transfer took in ms.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return Returns the exception that stopped the transfer or null if it
+     *         was successful.
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    public String toString() {
+        return source + " -> " + destination + ": "
+                + (exception == null ? bytes + " bytes in " + time + " ms"
+                        : "failed (" + exception + ")");
+    }
+}
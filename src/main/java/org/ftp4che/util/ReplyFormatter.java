@@ -53,6 +53,16 @@ public static Date parseMDTMReply(Reply mdtmReply) throws ParseException
           return formatter.parse(line.substring(line.indexOf(' ') + 1));
     }
 
+    public static long parseSIZEReply(Reply sizeReply)
+    {
+        if (sizeReply.getLines().size() != 1)
+            throw new UnkownReplyStateException(
+                    "SIZE Reply has to have a size of 1 entry but it has: "
+                            + sizeReply.getLines().size());
+        String line = (String)sizeReply.getLines().get(0);
+        return Long.parseLong(line.substring(line.indexOf(' ') + 1).trim());
+    }
+
     public static String parseXCRCReply(Reply crcReply) 
     {
   	  List lines = crcReply.getLines();
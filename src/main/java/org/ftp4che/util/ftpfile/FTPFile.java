@@ -35,6 +35,8 @@ public class FTPFile implements Comparable {
     
     public final static int NETWARE = 3;
 
+    public final static int MLSX = 4;
+
     private int fileType;
 
     private String transferType = Command.TYPE_I;
@@ -34,6 +34,12 @@ public class FTPFileFactory {
 
     public static final String VMS_IDENTIFICATION = "VMS";
 
+    /**
+     * System of a factory for MLSD and MLST listings, they are parsed with
+     * the MLSxFileParser only
+     */
+    public static final String MLSX_IDENTIFICATION = "MLSX";
+
     private String system;
 
     private FileParser parser = null;
@@ -56,7 +62,11 @@ public class FTPFileFactory {
     }
 
     public FileParser getParserInstance() {
-        if (system.indexOf(UNIX_IDENTIFICATION) >= 0)
+        if (system.equals(MLSX_IDENTIFICATION))
+        {
+            return new MLSxFileParser();
+        }
+        else if (system.indexOf(UNIX_IDENTIFICATION) >= 0)
         {
         	log.debug("Found UNIX identification, try to use UNIX file parser");
             return new UnixFileParser(locale);
@@ -80,54 +90,77 @@ public class FTPFileFactory {
         List files = new ArrayList(serverLines.size());
                 
         for (Iterator it = serverLines.iterator(); it.hasNext();) {
-        	FTPFile file = null;
-            String line = (String) it.next();
-            
-        	try
-        	{
-                log.debug("Trying to parse line: " + line);
-        		file = parser.parse(line, parentPath);
-        	}catch (ParseException pe)
-        	{
-        		// Expected parser couldn't parse trying other parsers
-        		try
+            FTPFile file = parseLine((String) it.next(), parentPath);
+            if (file != null)
+                files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Parses a single line of a directory listing. If the current parser can
+     * not parse the line the other parsers are tried and the first one that
+     * succeeds will be used for the following lines.
+     * 
+     * @param line
+     *            the line of the listing
+     * @param parentPath
+     *            the directory the listing belongs to
+     * @return the parsed file or null if the line does not describe a file
+     */
+    public FTPFile parseLine(String line, String parentPath)
+    {
+    	FTPFile file = null;
+    	try
+    	{
+    		if (log.isDebugEnabled())
+    			log.debug("Trying to parse line: " + line);
+    		file = parser.parse(line, parentPath);
+    	}catch (ParseException pe)
+    	{
+    		// the format of machine readable listings is known, the line is
+    		// skipped instead of guessing
+    		if (parser instanceof MLSxFileParser)
+    		{
+    			log.warn("Skipping unparseable MLSD line: " + line);
+    			return null;
+    		}
+    		// Expected parser couldn't parse trying other parsers
+    		try
+    		{
+    			log.warn("Previous file parser couldn't parse listing. Trying a UNIX file parser");
+    			parser = new UnixFileParser(locale);
+    			file = parser.parse(line, parentPath);
+    		}catch (ParseException pe2)
+    		{
+    			try
+    			{
+    				log.warn("Previous file parser couldn't parse listing. Trying a EPLF file parser");
+    				parser = new EPLFFileParser();
+    				file = parser.parse(line, parentPath);
+    			}catch (ParseException pe5)
+    			{
+    			try
         		{
-        			log.warn("Previous file parser couldn't parse listing. Trying a UNIX file parser");
-        			parser = new UnixFileParser(locale);
+    				log.warn("Previous file parser couldn't parse listing. Trying a netware file parser");
+        			parser = new NetwareFileParser(locale);
         			file = parser.parse(line, parentPath);
-        		}catch (ParseException pe2)
+        		}catch (ParseException pe3)
         		{
+        			log.warn("Last chance!!! calling LastChanceFileParser");
+        			parser = new LastChanceFileParser(locale);
         			try
         			{
-        				log.warn("Previous file parser couldn't parse listing. Trying a EPLF file parser");
-        				parser = new EPLFFileParser();
         				file = parser.parse(line, parentPath);
-        			}catch (ParseException pe5)
+        			}catch (ParseException pe4)
         			{
-        			try
-            		{
-        				log.warn("Previous file parser couldn't parse listing. Trying a netware file parser");
-            			parser = new NetwareFileParser(locale);
-            			file = parser.parse(line, parentPath);
-            		}catch (ParseException pe3)
-            		{
-            			log.warn("Last chance!!! calling LastChanceFileParser");
-            			parser = new LastChanceFileParser(locale);
-            			try
-            			{
-            				file = parser.parse(line, parentPath);
-            			}catch (ParseException pe4)
-            			{
-            				log.fatal("Couldn't parse the LIST reply");
-            			}
-            		}
-        		}
+        				log.fatal("Couldn't parse the LIST reply");
+        			}
         		}
-        	}
-            if (file != null)
-                files.add(file);
-        }
-        return files;
+    		}
+    		}
+    	}
+    	return file;
     }
 
     
@@ -0,0 +1,31 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.util.ftpfile;
+
+/**
+ * Receives the entries of a directory listing while the listing is still
+ * being read from the data connection, so a listing never has to be kept in
+ * memory as a whole.
+ * 
+ * handleFile is called on the thread that reads the data connection, not on
+ * the thread that asked for the listing, so the handler has to be thread safe
+ * with respect to that thread. If it throws a RuntimeException the listing is
+ * aborted and the exception is thrown by getDirectoryListing.
+ */
+public interface FTPFileHandler {
+    public void handleFile(FTPFile file);
+}
@@ -0,0 +1,195 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.util.ftpfile;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Parser for the machine readable listings of MLSD and MLST (RFC 3659). A
+ * line consists of facts ("name=value;") followed by a space and the
+ * pathname. The facts are read in a single pass without splitting the line:
+ * type, size, modify, unix.mode, unix.owner and unix.group are used, the
+ * others are ignored. The modify fact is always UTC, so no locale or time
+ * zone is involved.
+ * 
+ * The entries of the listed directory itself and its parent (type=cdir and
+ * type=pdir) are skipped.
+ */
+public class MLSxFileParser implements FileParser {
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private static final String MODE_CHARS = "rwxrwxrwx";
+
+	public FTPFile parse(String serverString, String parentDirectory)
+			throws ParseException {
+		if (serverString == null)
+			throw new ParseException("Did not get a line - will skip parsing!", 0);
+		int length = serverString.length();
+		// MLST replies indent the line with a single space
+		int pos = length > 0 && serverString.charAt(0) == ' ' ? 1 : 0;
+
+		String type = null;
+		long size = -1;
+		Date date = null;
+		int unixMode = -1;
+		String owner = null;
+		String group = null;
+
+		while (pos < length && serverString.charAt(pos) != ' ') {
+			int end = serverString.indexOf(';', pos);
+			if (end < 0)
+				throw new ParseException("Not a MLSD/MLST line (fact without ';'): "
+						+ serverString, pos);
+			int equals = serverString.indexOf('=', pos);
+			if (equals < 0 || equals > end)
+				throw new ParseException("Not a MLSD/MLST line (fact without '='): "
+						+ serverString, pos);
+			int nameLength = equals - pos;
+			int value = equals + 1;
+			if (isFact(serverString, pos, nameLength, "type")) {
+				type = serverString.substring(value, end);
+			} else if (isFact(serverString, pos, nameLength, "size")
+					|| isFact(serverString, pos, nameLength, "sizd")) {
+				size = parseNumber(serverString, value, end, 10);
+			} else if (isFact(serverString, pos, nameLength, "modify")) {
+				date = parseTime(serverString, value, end);
+			} else if (isFact(serverString, pos, nameLength, "unix.mode")) {
+				unixMode = (int) parseNumber(serverString, value, end, 8);
+			} else if (isFact(serverString, pos, nameLength, "unix.owner")
+					|| (owner == null && isFact(serverString, pos, nameLength, "unix.uid"))) {
+				owner = serverString.substring(value, end);
+			} else if (isFact(serverString, pos, nameLength, "unix.group")
+					|| (group == null && isFact(serverString, pos, nameLength, "unix.gid"))) {
+				group = serverString.substring(value, end);
+			}
+			pos = end + 1;
+		}
+		if (pos >= length)
+			throw new ParseException("Not a MLSD/MLST line (no pathname): "
+					+ serverString, pos);
+		if (type != null
+				&& (type.equalsIgnoreCase("cdir") || type.equalsIgnoreCase("pdir")))
+			return null;
+
+		// MLST returns the full pathname, MLSD only the name
+		String pathname = serverString.substring(pos + 1);
+		String name = pathname;
+		String path = parentDirectory;
+		int slash = pathname.lastIndexOf('/');
+		if (slash >= 0 && slash < pathname.length() - 1) {
+			name = pathname.substring(slash + 1);
+			path = slash == 0 ? "/" : pathname.substring(0, slash);
+		}
+
+		FTPFile file = new FTPFile(FTPFile.MLSX, path, name, serverString);
+		boolean directory = type != null && type.equalsIgnoreCase("dir");
+		file.setDirectory(directory);
+		// symbolic links are reported as "OS.unix=slink:target" or
+		// "OS.unix=symlink"
+		if (type != null && type.regionMatches(true, 0, "OS.unix=s", 0, 9)) {
+			file.setLink(true);
+			int colon = type.indexOf(':');
+			if (colon > 0)
+				file.setLinkedName(type.substring(colon + 1));
+		}
+		file.setSize(size);
+		file.setDate(date);
+		if (owner != null)
+			file.setOwner(owner);
+		if (group != null)
+			file.setGroup(group);
+		if (unixMode >= 0)
+			file.setMode(toMode(file.isLink() ? 'l' : directory ? 'd' : '-',
+					unixMode));
+		return file;
+	}
+
+	private static boolean isFact(String line, int offset, int length,
+			String fact) {
+		return length == fact.length()
+				&& line.regionMatches(true, offset, fact, 0, length);
+	}
+
+	private static long parseNumber(String line, int start, int end, int radix)
+			throws ParseException {
+		if (start == end)
+			throw new ParseException("Empty number in: " + line, start);
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit >= radix)
+				throw new ParseException("Invalid number in: " + line, i);
+			number = number * radix + digit;
+		}
+		return number;
+	}
+
+	/**
+	 * Parses a time-val (YYYYMMDDHHMMSS[.sss]) which is always UTC.
+	 */
+	private static Date parseTime(String line, int start, int end)
+			throws ParseException {
+		if (end - start < 14)
+			throw new ParseException("Invalid time in: " + line, start);
+		int year = (int) parseNumber(line, start, start + 4, 10);
+		int month = (int) parseNumber(line, start + 4, start + 6, 10);
+		int day = (int) parseNumber(line, start + 6, start + 8, 10);
+		int hour = (int) parseNumber(line, start + 8, start + 10, 10);
+		int minute = (int) parseNumber(line, start + 10, start + 12, 10);
+		int second = (int) parseNumber(line, start + 12, start + 14, 10);
+		int millis = 0;
+		if (end - start > 15 && line.charAt(start + 14) == '.') {
+			// only milliseconds are kept
+			int fractionEnd = Math.min(end, start + 18);
+			millis = (int) parseNumber(line, start + 15, fractionEnd, 10);
+			for (int i = fractionEnd - start - 15; i < 3; i++)
+				millis *= 10;
+		}
+		if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23
+				|| minute > 59 || second > 60)
+			throw new ParseException("Invalid time in: " + line, start);
+		return new Date(daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+				+ ((hour * 60L + minute) * 60 + second) * 1000 + millis);
+	}
+
+	/**
+	 * @return the days from 1970-01-01 to the given date of the proleptic
+	 *         gregorian calendar
+	 */
+	static long daysSinceEpoch(int year, int month, int day) {
+		// the year starts in march, so the leap day is the last day
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static String toMode(char type, int unixMode) {
+		char[] mode = new char[10];
+		mode[0] = type;
+		for (int i = 0; i < 9; i++)
+			mode[i + 1] = (unixMode & (0400 >> i)) != 0 ? MODE_CHARS.charAt(i)
+					: '-';
+		return new String(mode);
+	}
+}
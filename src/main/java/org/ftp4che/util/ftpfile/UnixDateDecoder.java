@@ -0,0 +1,211 @@
+/**                                                                         
+ *  This file is part of ftp4che.                                            
+ *  This library is free software; you can redistribute it and/or modify it
+ *  under the terms of the GNU Lesser General Public License as published
+ *  by the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.ftp4che.util.ftpfile;
+
+import java.text.DateFormatSymbols;
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneRules;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the date columns of a unix listing ("Oct 18 12:00" or "Oct 18
+ * 2005") in the local time zone without SimpleDateFormat or Calendar. The
+ * month names of the locale and of english are looked up in tables which are
+ * built once per locale. A date without year is in the current year, or in
+ * the last one if it would be in the future. The current year is cached until
+ * it ends.
+ * 
+ * Instances are immutable apart from the year cache and can be shared by all
+ * threads, see getInstance().
+ */
+final class UnixDateDecoder {
+	private static final Map<String, UnixDateDecoder> decoders =
+			new ConcurrentHashMap<String, UnixDateDecoder>();
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	// lower case month names of the locale and of english
+	private final String[] months;
+
+	private final String[] englishMonths;
+
+	private final ZoneId zone;
+
+	private final ZoneRules rules;
+
+	private volatile CurrentYear currentYear;
+
+	private static final class CurrentYear {
+		final int year;
+
+		// the first millisecond of the next year
+		final long end;
+
+		CurrentYear(int year, long end) {
+			this.year = year;
+			this.end = end;
+		}
+	}
+
+	private UnixDateDecoder(Locale locale, ZoneId zone) {
+		this.months = monthNames(locale);
+		this.englishMonths = monthNames(Locale.ENGLISH);
+		this.zone = zone;
+		this.rules = zone.getRules();
+	}
+
+	/**
+	 * @return the shared decoder for the locale and the default time zone
+	 */
+	static UnixDateDecoder getInstance(Locale locale) {
+		ZoneId zone = ZoneId.systemDefault();
+		String key = locale + "|" + zone.getId();
+		UnixDateDecoder decoder = decoders.get(key);
+		if (decoder == null) {
+			decoder = new UnixDateDecoder(locale, zone);
+			decoders.put(key, decoder);
+		}
+		return decoder;
+	}
+
+	private static String[] monthNames(Locale locale) {
+		String[] shortMonths = new DateFormatSymbols(locale).getShortMonths();
+		String[] names = new String[12];
+		for (int i = 0; i < 12; i++) {
+			String name = shortMonths[i].toLowerCase(locale);
+			// some locales abbreviate with a dot ("janv.")
+			if (name.endsWith("."))
+				name = name.substring(0, name.length() - 1);
+			names[i] = name;
+		}
+		return names;
+	}
+
+	/**
+	 * Decodes the date given by the three columns of the line.
+	 * 
+	 * @return the time in milliseconds since the epoch
+	 * @throws ParseException
+	 *             will be thrown if a column is not valid
+	 */
+	long decode(String line, int monthStart, int monthEnd, int dayStart,
+			int dayEnd, int yearOrTimeStart, int yearOrTimeEnd)
+			throws ParseException {
+		int month = month(line, monthStart, monthEnd);
+		if (month < 0)
+			throw new ParseException("Unknown month in: " + line, monthStart);
+		int day = number(line, dayStart, dayEnd);
+		if (day < 1 || day > 31)
+			throw new ParseException("Invalid day in: " + line, dayStart);
+
+		int colon = -1;
+		for (int i = yearOrTimeStart; i < yearOrTimeEnd; i++) {
+			if (line.charAt(i) == ':') {
+				colon = i;
+				break;
+			}
+		}
+		if (colon < 0) {
+			int year = number(line, yearOrTimeStart, yearOrTimeEnd);
+			if (year < 0)
+				throw new ParseException("Invalid year in: " + line,
+						yearOrTimeStart);
+			return toMillis(year, month, day, 0, 0);
+		}
+
+		int hour = number(line, yearOrTimeStart, colon);
+		// seconds after the minutes are ignored
+		int minuteEnd = Math.min(colon + 3, yearOrTimeEnd);
+		int minute = number(line, colon + 1, minuteEnd);
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59)
+			throw new ParseException("Invalid time in: " + line,
+					yearOrTimeStart);
+		long now = System.currentTimeMillis();
+		CurrentYear current = currentYear(now);
+		long millis = toMillis(current.year, month, day, hour, minute);
+		if (millis > now)
+			millis = toMillis(current.year - 1, month, day, hour, minute);
+		return millis;
+	}
+
+	private CurrentYear currentYear(long now) {
+		CurrentYear current = currentYear;
+		if (current == null || now >= current.end) {
+			int year = ZonedDateTime.ofInstant(Instant.ofEpochMilli(now), zone)
+					.getYear();
+			current = new CurrentYear(year, ZonedDateTime.of(year + 1, 1, 1,
+					0, 0, 0, 0, zone).toInstant().toEpochMilli());
+			currentYear = current;
+		}
+		return current;
+	}
+
+	private long toMillis(int year, int month, int day, int hour, int minute) {
+		long local = MLSxFileParser.daysSinceEpoch(year, month, day)
+				* MILLIS_PER_DAY + (hour * 60L + minute) * 60 * 1000;
+		if (rules.isFixedOffset())
+			return local - rules.getOffset(Instant.EPOCH).getTotalSeconds()
+					* 1000L;
+		// the offset at the local time taken as UTC is right unless a
+		// transition is between both, then the second guess is
+		long utc = local - rules.getOffset(Instant.ofEpochMilli(local))
+				.getTotalSeconds() * 1000L;
+		return local - rules.getOffset(Instant.ofEpochMilli(utc))
+				.getTotalSeconds() * 1000L;
+	}
+
+	private int month(String line, int start, int end) {
+		if (end > start && line.charAt(end - 1) == '.')
+			end--;
+		int month = find(months, line, start, end);
+		if (month < 0 && months != englishMonths)
+			month = find(englishMonths, line, start, end);
+		return month;
+	}
+
+	private static int find(String[] names, String line, int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].length() == length
+					&& line.regionMatches(true, start, names[i], 0, length))
+				return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the decimal number or -1 if the text is empty or contains other
+	 *         characters than digits
+	 */
+	static int number(String line, int start, int end) {
+		if (start >= end || end - start > 9)
+			return -1;
+		int number = 0;
+		for (int i = start; i < end; i++) {
+			int digit = line.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			number = number * 10 + digit;
+		}
+		return number;
+	}
+}
@@ -1,24 +1,28 @@
 package org.ftp4che.util.ftpfile;
 
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.Locale;
-import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Parser for the listing format of ls -l. A line is tokenized in a single
+ * pass which only records where the columns start and end, so the line is
+ * neither split nor copied apart from the fields of the returned FTPFile.
+ * The name is the rest of the line and keeps its spaces. The date columns are
+ * decoded by a UnixDateDecoder which is shared by all parsers of a locale.
+ */
 public class UnixFileParser implements FileParser {
     private static final Logger log = Logger.getLogger(UnixFileParser.class);
     
-    private Locale locale;
-    
-    private static final String[] formatString = { 	new String("MMM dd yyyy HH:mm"),
-    												new String("MMM dd yyyy") };
+    // mode, link count, owner, group, size, month, day, year or time
+    private static final int COLUMNS = 8;
     
+    private final UnixDateDecoder dateDecoder;
     
 	public UnixFileParser(Locale locale) {
-		this.locale = locale;
+		this.dateDecoder = UnixDateDecoder.getInstance(locale);
 	}
 
 	public FTPFile parse(String serverString, String parentDirectory) throws ParseException {
@@ -26,102 +30,98 @@ public class UnixFileParser implements FileParser {
 			throw new ParseException("Did not get a line - will skip parsing!", 0);
 		
 		// validate the given line 
+		if ( serverString.length() == 0 )
+			return null;
 		char start = serverString.charAt(0);
 		if ( start != 'd' && start != 'l' && start != '-')
 			return null;
-		else if ( start == '+' )
-			throw new ParseException("Looks like this one is the wrong parser, but found EPLF format!", 0);
 		
-		FTPFile file = new FTPFile(FTPFile.UNIX, parentDirectory, null, serverString);
-		String[] tokens = serverString.split(" ++");
+		// starts[i], ends[i] are the bounds of column i, the name starts
+		// behind the last one
+		int[] starts = new int[COLUMNS];
+		int[] ends = new int[COLUMNS];
+		int length = serverString.length();
+		int position = 0;
+		int columns = 0;
+		while ( columns < COLUMNS ) {
+			while ( position < length && serverString.charAt(position) == ' ' )
+				position++;
+			if ( position == length )
+				break;
+			starts[columns] = position;
+			while ( position < length && serverString.charAt(position) != ' ' )
+				position++;
+			ends[columns++] = position;
+		}
 		
 		// are there enough tokens in the line
-		if ( tokens.length < 8 )
-			throw new ParseException("The given line is unparseable for UnixFileParser - there are too less tokens in, need at least 8 ones!", serverString.length());
+		if ( columns < COLUMNS )
+			throw new ParseException("The given line is unparseable for UnixFileParser - there are too less tokens in, need at least 8 ones!", length);
 		
-		file.setMode( tokens[0] );
-		file.setDirectory( tokens[0].startsWith("d") );
-		file.setLink( tokens[0].startsWith("l") );
-		
-		try {
-			file.setLinkCount( Integer.parseInt(tokens[1]) );
-		}catch(Exception e) {
-			throw new ParseException("Found unparseable field: " + tokens[1], 0);
-		}
+		FTPFile file = new FTPFile(FTPFile.UNIX, parentDirectory, null, serverString);
+		file.setMode( serverString.substring(0, ends[0]) );
+		file.setDirectory( start == 'd' );
+		file.setLink( start == 'l' );
 		
-		file.setOwner( tokens[2] );
-		file.setGroup( tokens[3] );
+		long linkCount = number(serverString, starts[1], ends[1]);
+		if ( linkCount < 0 || linkCount > Integer.MAX_VALUE )
+			throw new ParseException("Found unparseable field: " + serverString.substring(starts[1], ends[1]), starts[1]);
+		file.setLinkCount( (int) linkCount );
 		
-		try {
-			file.setSize( Long.parseLong(tokens[4]) );			
-		}catch(Exception e) {
-			// maybe group token was missing
-			try {
-				file.setSize( Long.parseLong(tokens[3]) );
-				file.setGroup("");
-			}catch(Exception e2) {
-				throw new ParseException("Could not parse the file size from token: " + tokens[4] + "   Also one token before: " + tokens[3], 0);
-			}
-		}
+		file.setOwner( serverString.substring(starts[2], ends[2]) );
 		
-		/* look which date format is used
-		 * 
-		 * 1. format: MMM dd hh:mm
-		 * 2. format: MMM dd yyyy
-		 */ 
-		SimpleDateFormat sdf = null;
-		if ( tokens[7].indexOf(":") > 0 ) { // no year given - the format is MMM-dd hh:mm
-            try {
-            	sdf = new SimpleDateFormat(formatString[0],locale);
-                file.setDate(sdf.parse( tokens[5] + " " + // month
-                						tokens[6] + " " + // day
-                						Calendar.getInstance(this.locale).get(Calendar.YEAR) + " " + // no year given - using current
-                						tokens[7] ));
-            } catch (ParseException pe) {
-            	sdf = new SimpleDateFormat(formatString[0], Locale.ENGLISH);
-                file.setDate(sdf.parse( tokens[5] + " " + // month
-										tokens[6] + " " + // day
-										Calendar.getInstance(Locale.ENGLISH).get(Calendar.YEAR) + " " + // no year given - using current
-										tokens[7] ));
-                this.locale = Locale.ENGLISH;
-            }
-            
-            // check if it is possible that the year from filedate is the current
-            Calendar today = Calendar.getInstance(this.locale);
-            if (file.getDate().after(today.getTime())) {
-            	today.setTime(file.getDate());
-            	today.set(Calendar.YEAR, today.get(Calendar.YEAR) - 1);
-            	file.setDate(today.getTime());
-            }
+		// the date columns follow the size, which is one column earlier
+		// if the group is missing
+		int date = 5;
+		long size = number(serverString, starts[4], ends[4]);
+		if ( size >= 0 ) {
+			file.setGroup( serverString.substring(starts[3], ends[3]) );
 		}else {
-            try {
-            	sdf = new SimpleDateFormat(formatString[1],locale);
-                file.setDate(sdf.parse( tokens[5] + " " + // month
-                						tokens[6] + " " + // day
-                						tokens[7] )); // year
-            } catch (ParseException pe) {
-            	sdf = new SimpleDateFormat(formatString[1], Locale.ENGLISH);
-                file.setDate(sdf.parse( tokens[5] + " " + // month
-                						tokens[6] + " " + // day
-                						tokens[7] )); // year
-                this.locale = Locale.ENGLISH;
-            }
+			size = number(serverString, starts[3], ends[3]);
+			if ( size < 0 )
+				throw new ParseException("Could not parse the file size from token: " + serverString.substring(starts[4], ends[4]) + "   Also one token before: " + serverString.substring(starts[3], ends[3]), starts[3]);
+			file.setGroup("");
+			date = 4;
 		}
-
-		String name = "";
-		for (int i=8; i<tokens.length; i++)
-			name += tokens[i] + " ";
-		name = name.trim();
+		file.setSize( size );
+		
+		file.setDate(new Date(dateDecoder.decode(serverString, starts[date], ends[date],
+				starts[date + 1], ends[date + 1], starts[date + 2], ends[date + 2])));
 		
-		if ( !file.isLink() ) {
-			file.setName(name);
-		}else { // be care of the -> in the string
-			file.setName(name.split("->")[0].trim());
-			file.setLinkedName(name.split("->")[1].trim());
+		// the name starts behind the spaces which follow the year or time
+		position = ends[date + 2];
+		while ( position < length && serverString.charAt(position) == ' ' )
+			position++;
+		if ( position == length )
+			throw new ParseException("The given line is unparseable for UnixFileParser - the name is missing", length);
+		
+		// be care of the -> in the string
+		int arrow = file.isLink() ? serverString.indexOf(" -> ", position) : -1;
+		if ( arrow < 0 ) {
+			file.setName( serverString.substring(position) );
+		}else {
+			file.setName( serverString.substring(position, arrow) );
+			file.setLinkedName( serverString.substring(arrow + 4) );
 		}
 		
 		return file;
 	}
+	
+	/**
+	 * @return the decimal number or -1 if the text is empty or contains other
+	 *         characters than digits
+	 */
+	private static long number(String serverString, int start, int end) {
+		if ( start >= end || end - start > 18 )
+			return -1;
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			int digit = serverString.charAt(i) - '0';
+			if ( digit < 0 || digit > 9 )
+				return -1;
+			number = number * 10 + digit;
+		}
+		return number;
+	}
 }
 
-